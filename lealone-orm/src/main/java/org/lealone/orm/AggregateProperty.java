@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.orm;
+
+import org.lealone.sql.dml.Select;
+import org.lealone.sql.expression.Expression;
+import org.lealone.sql.expression.aggregate.Aggregate;
+
+/**
+ * An aggregate function of a property, it can be used in select(...) together with groupBy(...).
+ *
+ * @param <R> the type of the owning root bean
+ */
+public class AggregateProperty<R> implements SelectItem {
+
+    public static final int COUNT = Aggregate.COUNT;
+    public static final int SUM = Aggregate.SUM;
+    public static final int MIN = Aggregate.MIN;
+    public static final int MAX = Aggregate.MAX;
+    public static final int AVG = Aggregate.AVG;
+
+    private final ModelProperty<R> property;
+    private final int type;
+    private final boolean distinct;
+
+    AggregateProperty(ModelProperty<R> property, int type, boolean distinct) {
+        this.property = property;
+        this.type = type;
+        this.distinct = distinct;
+    }
+
+    public ModelProperty<R> getProperty() {
+        return property;
+    }
+
+    // 聚合函数在执行时要从所属的Select中取得当前分组
+    Expression createExpression(Select select) {
+        return new Aggregate(type, Model.getExpressionColumn(property), select, distinct);
+    }
+
+    @Override
+    public String getName() {
+        return createExpression(null).getSQL();
+    }
+
+    @Override
+    public int hashCode() {
+        return property.hashCode() * 31 + type * 2 + (distinct ? 1 : 0);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof AggregateProperty))
+            return false;
+        AggregateProperty<?> other = (AggregateProperty<?>) obj;
+        return property == other.property && type == other.type && distinct == other.distinct;
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.orm;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.lealone.common.exceptions.DbException;
+import org.lealone.db.constraint.Constraint;
+import org.lealone.db.constraint.ConstraintReferential;
+import org.lealone.db.table.Column;
+import org.lealone.db.table.Table;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueNull;
+
+/**
+ * Loads the associate models included by {@link Model#include(Model)} after the main query.
+ * <p>
+ * Each associate type is loaded with one query, an IN condition on the foreign key with the keys of all the parents,
+ * and the associate models are added to their parents by the generated addXxx methods.
+ * </p>
+ */
+class AssociationLoader {
+
+    private AssociationLoader() {
+    }
+
+    static void load(List<?> parents, ArrayList<Model<?>> includes, Long tid) {
+        if (parents.isEmpty())
+            return;
+        for (Model<?> include : includes) {
+            Association a = Association.create(parents, include);
+            if (a != null)
+                a.attach(include.reclaim(a.dao, a.dao.findList(tid)));
+        }
+    }
+
+    /**
+     * Load the associate models with the async queries, one associate type after another.
+     */
+    static CompletableFuture<Void> loadAsync(List<?> parents, ArrayList<Model<?>> includes, Long tid) {
+        CompletableFuture<Void> future = CompletableFuture.completedFuture(null);
+        if (parents.isEmpty())
+            return future;
+        for (Model<?> include : includes) {
+            Association a = Association.create(parents, include);
+            if (a != null)
+                future = future.thenCompose(v -> a.dao.findListAsync(tid).thenAccept(a::attach));
+        }
+        return future;
+    }
+
+    // 一种关联模型的查询，dao上已经有了外键的IN条件
+    private static class Association {
+        final Model<?> dao;
+        final Column column;
+        final int type;
+        final HashMap<Value, ArrayList<Model<?>>> parentMap;
+        final Method add;
+
+        private Association(Model<?> dao, Column column, int type, HashMap<Value, ArrayList<Model<?>>> parentMap,
+                Method add) {
+            this.dao = dao;
+            this.column = column;
+            this.type = type;
+            this.parentMap = parentMap;
+            this.add = add;
+        }
+
+        // 父模型的引用字段都是null时不需要查询，返回null
+        static Association create(List<?> parents, Model<?> include) {
+            Model<?> first = (Model<?>) parents.get(0);
+            Table parentTable = first.getTable().getTable();
+            Model<?> dao = include.maybeCopy();
+            ConstraintReferential fk = findForeignKey(dao.getTable().getTable(), parentTable);
+            Column column = fk.getColumns()[0].column;
+            Column refColumn = fk.getRefColumns()[0].column;
+            int type = refColumn.getType();
+
+            // 引用字段的值可能重复，也可能为null
+            HashMap<Value, ArrayList<Model<?>>> parentMap = new HashMap<>(parents.size());
+            for (Object o : parents) {
+                Model<?> parent = (Model<?>) o;
+                Value key = parent.getPropertyValue(refColumn.getName());
+                if (key == ValueNull.INSTANCE)
+                    continue;
+                key = key.convertTo(type);
+                ArrayList<Model<?>> list = parentMap.get(key);
+                if (list == null) {
+                    list = new ArrayList<>(1);
+                    parentMap.put(key, list);
+                }
+                list.add(parent);
+            }
+            if (parentMap.isEmpty())
+                return null;
+
+            Method add = getAddMethod(first.getClass(), dao.getClass());
+            dao.getWhereExpressionBuilder().in(column.getName(), new ArrayList<>(parentMap.keySet()));
+            return new Association(dao, column, type, parentMap, add);
+        }
+
+        void attach(List<?> children) {
+            try {
+                for (Object o : children) {
+                    Model<?> child = (Model<?>) o;
+                    ArrayList<Model<?>> list = parentMap.get(child.getPropertyValue(column.getName()).convertTo(type));
+                    if (list == null)
+                        continue;
+                    for (Model<?> parent : list)
+                        add.invoke(parent, child);
+                }
+            } catch (Exception e) {
+                throw DbException.convert(e);
+            }
+        }
+    }
+
+    private static ConstraintReferential findForeignKey(Table table, Table refTable) {
+        ConstraintReferential fk = peekForeignKey(table, refTable);
+        if (fk == null)
+            throw new UnsupportedOperationException(
+                    "No foreign key from " + table.getSQL() + " references " + refTable.getSQL());
+        if (fk.getColumns().length != 1)
+            throw new UnsupportedOperationException("Only single column foreign keys are supported: " + fk.getSQL());
+        return fk;
+    }
+
+    /**
+     * Return the first foreign key of the table that references refTable, or null if there is none.
+     */
+    static ConstraintReferential peekForeignKey(Table table, Table refTable) {
+        ArrayList<Constraint> constraints = table.getConstraints();
+        if (constraints != null) {
+            for (Constraint c : constraints) {
+                if (c instanceof ConstraintReferential && ((ConstraintReferential) c).getRefTable() == refTable)
+                    return (ConstraintReferential) c;
+            }
+        }
+        return null;
+    }
+
+    // 生成的模型类用addXxx方法把关联的模型加到父模型中
+    static Method getAddMethod(Class<?> parentClass, Class<?> childClass) {
+        try {
+            return parentClass.getMethod("add" + childClass.getSimpleName(), childClass);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException(
+                    parentClass.getSimpleName() + " has no associate model " + childClass.getSimpleName());
+        }
+    }
+}
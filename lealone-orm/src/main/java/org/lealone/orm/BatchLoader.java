@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.orm;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lealone.common.exceptions.DbException;
+import org.lealone.db.table.Column;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueNull;
+import org.lealone.db.value.ValueString;
+
+/**
+ * Opt-in micro-batching of the primary key lookups of a model class, in the style of a data loader.
+ * <p>
+ * The lookups that arrive within a short window, or up to a maximum batch size, are coalesced into one IN query,
+ * identical keys are queried once, and each caller gets its own copy of the model.
+ * A lookup that arrives when no batch is waiting or being queried is queried at once without waiting for the window.
+ * The IN queries use the async query API, so a slow batch does not hold up the others.
+ * Once enabled, the auto commit findOne and findOneAsync calls with one equality condition on the primary key
+ * go through the loader.
+ * </p>
+ */
+public class BatchLoader<T> {
+
+    // 单位是微秒
+    private static final long WINDOW = Long.getLong("lealone.orm.batch.loader.window", 1000);
+    private static final int MAX_BATCH_SIZE = Integer.getInteger("lealone.orm.batch.loader.max.batch.size", 128);
+
+    private static final ConcurrentHashMap<Class<?>, BatchLoader<?>> batchLoaders = new ConcurrentHashMap<>();
+
+    // 所有的BatchLoader共用一个定时线程，它只负责发起到时间的批次的异步查询，不会等待查询结果
+    private static ScheduledExecutorService scheduler;
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "ORMBatchLoaderThread");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return scheduler;
+    }
+
+    /**
+     * Enable the loader for the model class of the dao, the old loader is replaced if it is already enabled.
+     */
+    public static <T> BatchLoader<T> enable(Model<T> dao) {
+        return enable(dao, WINDOW, MAX_BATCH_SIZE);
+    }
+
+    /**
+     * @param window the time in microseconds a batch waits for more keys
+     * @param maxBatchSize the batch is queried at once when it has this many distinct keys
+     */
+    public static <T> BatchLoader<T> enable(Model<T> dao, long window, int maxBatchSize) {
+        if (!dao.isDao())
+            throw new IllegalArgumentException("The batch loader needs a dao");
+        if (window < 0 || maxBatchSize <= 0)
+            throw new IllegalArgumentException("window: " + window + ", maxBatchSize: " + maxBatchSize);
+        Column column = dao.getPrimaryKeyColumn();
+        if (column == null)
+            throw new UnsupportedOperationException("The batch loader needs a single column primary key, table: "
+                    + dao.getTable().getTable().getSQL());
+        BatchLoader<T> loader = new BatchLoader<>(dao, column, TimeUnit.MICROSECONDS.toNanos(window), maxBatchSize);
+        batchLoaders.put(dao.getClass(), loader);
+        return loader;
+    }
+
+    public static void disable(Class<?> modelClass) {
+        batchLoaders.remove(modelClass);
+    }
+
+    /**
+     * Return the loader of the model class, or null if it is not enabled.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> BatchLoader<T> getBatchLoader(Class<T> modelClass) {
+        return (BatchLoader<T>) batchLoaders.get(modelClass);
+    }
+
+    // Model不知道自己的具体类型参数，所以用通配符取出
+    static BatchLoader<?> peekBatchLoader(Class<?> modelClass) {
+        return batchLoaders.get(modelClass);
+    }
+
+    private final Model<T> dao;
+    private final Column column;
+    private final long window;
+    private final int maxBatchSize;
+
+    // 等待查询的批次，同一个key的多个调用者共用一次查询
+    private LinkedHashMap<Value, ArrayList<CompletableFuture<T>>> pending;
+    // 正在查询的批次个数，都为0时新的查找直接查询
+    private int inFlight;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong keyCount = new AtomicLong();
+
+    private BatchLoader(Model<T> dao, Column column, long window, int maxBatchSize) {
+        this.dao = dao;
+        this.column = column;
+        this.window = window;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Return the model with the primary key, or null if it is not found, the caller is blocked until its batch is
+     * queried.
+     */
+    public T load(Object key) {
+        try {
+            return submit(key).get();
+        } catch (InterruptedException e) {
+            throw DbException.convert(e);
+        } catch (ExecutionException e) {
+            throw DbException.convert(e.getCause());
+        }
+    }
+
+    public CompletableFuture<T> loadAsync(Object key) {
+        return submit(key);
+    }
+
+    private CompletableFuture<T> submit(Object key) {
+        Value k = toKey(key);
+        CompletableFuture<T> future = new CompletableFuture<>();
+        requestCount.incrementAndGet();
+        if (k == ValueNull.INSTANCE) {
+            // 主键不会是null
+            future.complete(null);
+            return future;
+        }
+        LinkedHashMap<Value, ArrayList<CompletableFuture<T>>> batch = null;
+        synchronized (this) {
+            if (pending == null && inFlight == 0) {
+                // 没有其他查找时不用等待时间窗口
+                batch = new LinkedHashMap<>(1);
+                ArrayList<CompletableFuture<T>> futures = new ArrayList<>(1);
+                futures.add(future);
+                batch.put(k, futures);
+                inFlight++;
+            } else if (pending == null) {
+                LinkedHashMap<Value, ArrayList<CompletableFuture<T>>> p = new LinkedHashMap<>();
+                pending = p;
+                getScheduler().schedule(() -> flush(p), window, TimeUnit.NANOSECONDS);
+            }
+            if (batch == null) {
+                ArrayList<CompletableFuture<T>> futures = pending.get(k);
+                if (futures == null) {
+                    futures = new ArrayList<>(1);
+                    pending.put(k, futures);
+                }
+                futures.add(future);
+                if (pending.size() >= maxBatchSize) {
+                    batch = pending;
+                    pending = null;
+                    inFlight++;
+                }
+            }
+        }
+        // 查询是异步的，直接在当前线程中发起
+        if (batch != null)
+            load(batch);
+        return future;
+    }
+
+    private Value toKey(Object key) {
+        if (key == null || key == ValueNull.INSTANCE)
+            return ValueNull.INSTANCE;
+        Value v = key instanceof Value ? (Value) key : ValueString.get(key.toString());
+        return v.convertTo(column.getType());
+    }
+
+    // 时间到了，如果这一批还没有因为凑满而被取走就查询它
+    private void flush(LinkedHashMap<Value, ArrayList<CompletableFuture<T>>> batch) {
+        synchronized (this) {
+            if (pending != batch)
+                return;
+            pending = null;
+            inFlight++;
+        }
+        load(batch);
+    }
+
+    // 调用者已经把inFlight加1了，查询结束时再减1
+    private void load(LinkedHashMap<Value, ArrayList<CompletableFuture<T>>> batch) {
+        batchCount.incrementAndGet();
+        keyCount.addAndGet(batch.size());
+        CompletableFuture<List<T>> future;
+        try {
+            future = dao.findListByKeysAsync(column.getName(), new ArrayList<>(batch.keySet()));
+        } catch (Throwable e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        future.whenComplete((list, e) -> {
+            synchronized (this) {
+                inFlight--;
+            }
+            if (e != null)
+                fail(batch, e);
+            else
+                complete(batch, list);
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private void complete(LinkedHashMap<Value, ArrayList<CompletableFuture<T>>> batch, List<T> list) {
+        try {
+            for (T t : list) {
+                Model<?> m = (Model<?>) t;
+                Value k = m.getPropertyValue(column.getName()).convertTo(column.getType());
+                ArrayList<CompletableFuture<T>> futures = batch.remove(k);
+                if (futures == null)
+                    continue;
+                // 每个调用者拿到各自的副本
+                futures.get(0).complete(t);
+                for (int i = 1, size = futures.size(); i < size; i++)
+                    futures.get(i).complete((T) m.copyEntity());
+            }
+            for (ArrayList<CompletableFuture<T>> futures : batch.values()) {
+                for (CompletableFuture<T> f : futures)
+                    f.complete(null);
+            }
+        } catch (Throwable e) {
+            fail(batch, e);
+        }
+    }
+
+    // 已经完成的调用者不受影响
+    private static <T> void fail(LinkedHashMap<Value, ArrayList<CompletableFuture<T>>> batch, Throwable e) {
+        for (ArrayList<CompletableFuture<T>> futures : batch.values()) {
+            for (CompletableFuture<T> f : futures)
+                f.completeExceptionally(e);
+        }
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Return the number of the IN queries.
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * Return the number of the distinct keys queried.
+     */
+    public long getKeyCount() {
+        return keyCount.get();
+    }
+
+    public double getAverageBatchSize() {
+        long batches = batchCount.get();
+        return batches == 0 ? 0 : (double) keyCount.get() / batches;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.orm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.lealone.db.result.Result;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueNull;
+
+/**
+ * The result of findColumns, the values of each selected property are kept in one array.
+ * <p>
+ * Integer types are kept in a long[], floating point types in a double[],
+ * strings are dictionary encoded as an int[] of codes and a String[] of the distinct values,
+ * the other types are kept as objects.
+ * </p>
+ */
+public class ColumnarResult {
+
+    private static final int LONG = 0;
+    private static final int DOUBLE = 1;
+    private static final int STRING = 2;
+    private static final int OBJECT = 3;
+
+    private final String[] names;
+    private final int[] kinds;
+    private final Object[] columns;
+    private final String[][] dictionaries;
+    private final BitSet[] nulls;
+    private final int size;
+
+    private ColumnarResult(String[] names, int[] kinds, Object[] columns, String[][] dictionaries, BitSet[] nulls,
+            int size) {
+        this.names = names;
+        this.kinds = kinds;
+        this.columns = columns;
+        this.dictionaries = dictionaries;
+        this.nulls = nulls;
+        this.size = size;
+    }
+
+    /**
+     * Return the number of rows.
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getColumnCount() {
+        return names.length;
+    }
+
+    public String getColumnName(int column) {
+        return names[column];
+    }
+
+    public int getColumnIndex(ModelProperty<?> p) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equalsIgnoreCase(p.getName()))
+                return i;
+        }
+        throw new IllegalArgumentException("Property not selected: " + p.getName());
+    }
+
+    public boolean isNull(ModelProperty<?> p, int row) {
+        return nulls[getColumnIndex(p)].get(row);
+    }
+
+    /**
+     * Return the values of an integer property, null values are 0.
+     */
+    public long[] getLongs(ModelProperty<?> p) {
+        return (long[]) getColumn(getColumnIndex(p), LONG);
+    }
+
+    /**
+     * Return the values of a floating point property, null values are 0.
+     */
+    public double[] getDoubles(ModelProperty<?> p) {
+        return (double[]) getColumn(getColumnIndex(p), DOUBLE);
+    }
+
+    /**
+     * Return the dictionary codes of a string property, null values are -1.
+     */
+    public int[] getCodes(ModelProperty<?> p) {
+        return (int[]) getColumn(getColumnIndex(p), STRING);
+    }
+
+    /**
+     * Return the distinct values of a string property, indexed by the codes.
+     */
+    public String[] getDictionary(ModelProperty<?> p) {
+        int column = getColumnIndex(p);
+        getColumn(column, STRING);
+        return dictionaries[column];
+    }
+
+    public String getString(ModelProperty<?> p, int row) {
+        int column = getColumnIndex(p);
+        int code = ((int[]) getColumn(column, STRING))[row];
+        return code < 0 ? null : dictionaries[column][code];
+    }
+
+    /**
+     * Return the value of any property as an object, null values are null.
+     */
+    public Object getObject(ModelProperty<?> p, int row) {
+        int column = getColumnIndex(p);
+        if (nulls[column].get(row))
+            return null;
+        switch (kinds[column]) {
+        case LONG:
+            return ((long[]) columns[column])[row];
+        case DOUBLE:
+            return ((double[]) columns[column])[row];
+        case STRING:
+            return dictionaries[column][((int[]) columns[column])[row]];
+        default:
+            return ((Object[]) columns[column])[row];
+        }
+    }
+
+    private Object getColumn(int column, int kind) {
+        if (kinds[column] != kind)
+            throw new IllegalArgumentException("Property " + names[column] + " is not a " + getKindName(kind));
+        return columns[column];
+    }
+
+    private static String getKindName(int kind) {
+        switch (kind) {
+        case LONG:
+            return "integer property";
+        case DOUBLE:
+            return "floating point property";
+        default:
+            return "string property";
+        }
+    }
+
+    private static int getKind(int type) {
+        switch (type) {
+        case Value.BOOLEAN:
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+            return LONG;
+        case Value.FLOAT:
+        case Value.DOUBLE:
+            return DOUBLE;
+        case Value.STRING:
+        case Value.STRING_FIXED:
+        case Value.STRING_IGNORECASE:
+            return STRING;
+        default:
+            return OBJECT;
+        }
+    }
+
+    // 结果的最后一列是rowid，不需要返回
+    static ColumnarResult read(Result result, String[] names) {
+        int columnCount = names.length;
+        int capacity = Math.max(result.getRowCount(), 16);
+        int[] kinds = new int[columnCount];
+        Object[] columns = new Object[columnCount];
+        BitSet[] nulls = new BitSet[columnCount];
+        ArrayList<HashMap<String, Integer>> codes = new ArrayList<>(columnCount);
+        for (int i = 0; i < columnCount; i++) {
+            kinds[i] = getKind(result.getColumnType(i));
+            columns[i] = newColumn(kinds[i], capacity);
+            nulls[i] = new BitSet();
+            codes.add(kinds[i] == STRING ? new HashMap<>() : null);
+        }
+        int size = 0;
+        while (result.next()) {
+            Value[] row = result.currentRow();
+            if (size == capacity) {
+                capacity *= 2;
+                for (int i = 0; i < columnCount; i++)
+                    columns[i] = copyOf(columns[i], kinds[i], capacity);
+            }
+            for (int i = 0; i < columnCount; i++) {
+                Value v = row[i];
+                boolean isNull = v == ValueNull.INSTANCE;
+                if (isNull)
+                    nulls[i].set(size);
+                switch (kinds[i]) {
+                case LONG:
+                    ((long[]) columns[i])[size] = isNull ? 0 : v.getLong();
+                    break;
+                case DOUBLE:
+                    ((double[]) columns[i])[size] = isNull ? 0 : v.getDouble();
+                    break;
+                case STRING:
+                    ((int[]) columns[i])[size] = isNull ? -1 : encode(codes.get(i), v.getString());
+                    break;
+                default:
+                    ((Object[]) columns[i])[size] = isNull ? null : v.getObject();
+                }
+            }
+            size++;
+        }
+        String[][] dictionaries = new String[columnCount][];
+        for (int i = 0; i < columnCount; i++) {
+            columns[i] = copyOf(columns[i], kinds[i], size);
+            HashMap<String, Integer> map = codes.get(i);
+            if (map != null) {
+                String[] dictionary = new String[map.size()];
+                for (Map.Entry<String, Integer> e : map.entrySet())
+                    dictionary[e.getValue()] = e.getKey();
+                dictionaries[i] = dictionary;
+            }
+        }
+        return new ColumnarResult(names, kinds, columns, dictionaries, nulls, size);
+    }
+
+    private static int encode(HashMap<String, Integer> codes, String s) {
+        Integer code = codes.get(s);
+        if (code == null) {
+            code = codes.size();
+            codes.put(s, code);
+        }
+        return code;
+    }
+
+    private static Object newColumn(int kind, int capacity) {
+        switch (kind) {
+        case LONG:
+            return new long[capacity];
+        case DOUBLE:
+            return new double[capacity];
+        case STRING:
+            return new int[capacity];
+        default:
+            return new Object[capacity];
+        }
+    }
+
+    private static Object copyOf(Object column, int kind, int length) {
+        switch (kind) {
+        case LONG:
+            return Arrays.copyOf((long[]) column, length);
+        case DOUBLE:
+            return Arrays.copyOf((double[]) column, length);
+        case STRING:
+            return Arrays.copyOf((int[]) column, length);
+        default:
+            return Arrays.copyOf((Object[]) column, length);
+        }
+    }
+}
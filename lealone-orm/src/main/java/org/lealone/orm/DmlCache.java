@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.orm;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.lealone.db.ServerSession;
+import org.lealone.sql.StatementBase;
+import org.lealone.sql.expression.Parameter;
+
+/**
+ * Per model class cache of prepared insert, update and delete statements.
+ * <p>
+ * The key contains the operation, the changed columns and the conditions,
+ * the values are bound as parameters, so the same statement is reused for different values.
+ * </p>
+ */
+public class DmlCache extends StatementPool<DmlCache.CachedStatement> {
+
+    private static final int MAX_SIZE = Integer.getInteger("lealone.orm.dml.cache.size", 256);
+
+    private static final ConcurrentHashMap<Class<?>, DmlCache> dmlCaches = new ConcurrentHashMap<>();
+
+    public static DmlCache getDmlCache(Class<?> modelClass) {
+        DmlCache cache = dmlCaches.get(modelClass);
+        if (cache == null) {
+            cache = new DmlCache();
+            DmlCache old = dmlCaches.putIfAbsent(modelClass, cache);
+            if (old != null)
+                cache = old;
+        }
+        return cache;
+    }
+
+    static boolean isEnabled() {
+        return MAX_SIZE > 0;
+    }
+
+    static class CachedStatement extends StatementPool.PooledStatement {
+        // 不能缓存的语句key为null
+        final String key;
+
+        CachedStatement(String key, SessionPool sessionPool, ServerSession session, StatementBase statement,
+                ArrayList<Parameter> parameters) {
+            super(sessionPool, session, statement, parameters);
+            this.key = key;
+        }
+    }
+
+    private DmlCache() {
+        super(MAX_SIZE);
+    }
+
+    void offer(CachedStatement cs) {
+        offer(cs.key, cs);
+    }
+}
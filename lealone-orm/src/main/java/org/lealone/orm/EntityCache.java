@@ -0,0 +1,414 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.orm;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.lealone.db.value.Value;
+
+/**
+ * Opt-in cache of the models found by primary key, one cache per model class.
+ * <p>
+ * The eviction policy is W-TinyLFU: new entries enter a small LRU window, entries leaving the window compete with
+ * the victim of the main segmented LRU, and the one with the higher estimated access frequency is kept.
+ * The cache holds private copies, so the models returned by findOne can be modified freely.
+ * </p>
+ * <p>
+ * Lookups only read a concurrent map, the accesses are recorded in a lossy buffer and replayed
+ * into the frequency sketch and the queues by whichever thread gets the lock first.
+ * </p>
+ * <p>
+ * The cache is only kept consistent with the writes made through the ORM.
+ * </p>
+ */
+public class EntityCache {
+
+    private static final int DEFAULT_SIZE = Integer.getInteger("lealone.orm.entity.cache.size", 0);
+
+    private static final ConcurrentHashMap<Class<?>, EntityCache> entityCaches = new ConcurrentHashMap<>();
+
+    /**
+     * Enable the cache for the model class, the cache is reset if it is already enabled.
+     */
+    public static EntityCache enable(Class<?> modelClass, int maxSize) {
+        EntityCache cache = new EntityCache(maxSize);
+        EntityCache old = entityCaches.put(modelClass, cache);
+        if (old != null)
+            old.clear();
+        return cache;
+    }
+
+    public static void disable(Class<?> modelClass) {
+        EntityCache old = entityCaches.remove(modelClass);
+        if (old != null)
+            old.clear();
+    }
+
+    /**
+     * Return the cache of the model class, or null if it is not enabled.
+     * When lealone.orm.entity.cache.size is set, every model class has a cache of that size.
+     */
+    public static EntityCache getEntityCache(Class<?> modelClass) {
+        EntityCache cache = entityCaches.get(modelClass);
+        if (cache == null && DEFAULT_SIZE > 0) {
+            cache = new EntityCache(DEFAULT_SIZE);
+            EntityCache old = entityCaches.putIfAbsent(modelClass, cache);
+            if (old != null)
+                cache = old;
+        }
+        return cache;
+    }
+
+    // 不会创建新的缓存，写操作用它来判断是否需要让缓存失效
+    static EntityCache peekEntityCache(Class<?> modelClass) {
+        return entityCaches.get(modelClass);
+    }
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static class Node {
+        final Value key;
+        volatile Model<?> value;
+        int queue;
+        Node prev;
+        Node next;
+
+        Node(Value key, Model<?> value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    // 带头结点的双向循环链表，头部是最久没被访问的
+    private static class Queue {
+        final Node head = new Node(null, null);
+        int size;
+
+        Queue() {
+            head.prev = head.next = head;
+        }
+
+        void addLast(Node n) {
+            n.prev = head.prev;
+            n.next = head;
+            head.prev.next = n;
+            head.prev = n;
+            size++;
+        }
+
+        void remove(Node n) {
+            n.prev.next = n.next;
+            n.next.prev = n.prev;
+            n.prev = n.next = null;
+            size--;
+        }
+
+        void moveToLast(Node n) {
+            remove(n);
+            addLast(n);
+        }
+
+        Node first() {
+            return head.next == head ? null : head.next;
+        }
+
+        void clear() {
+            head.prev = head.next = head;
+            size = 0;
+        }
+    }
+
+    /**
+     * A count-min sketch with 4-bit counters, all counters are halved periodically so that old accesses fade out.
+     */
+    private static class FrequencySketch {
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int tableMask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int maxSize) {
+            int len = Integer.highestOneBit(Math.max(maxSize, 16) - 1) << 1;
+            table = new long[len];
+            tableMask = len - 1;
+            sampleSize = 10 * Math.max(maxSize, 16);
+        }
+
+        private static int spread(int h) {
+            h = ((h >>> 16) ^ h) * 0x45d9f3b;
+            h = ((h >>> 16) ^ h) * 0x45d9f3b;
+            return (h >>> 16) ^ h;
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + (long) i * 0x9E3779B97F4A7C15L) * 0x9E3779B97F4A7C15L;
+            return (int) (h >>> 32) & tableMask;
+        }
+
+        int frequency(Value key) {
+            int hash = spread(key.hashCode());
+            int start = (hash & 3) << 2;
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                int offset = (start + i) << 2;
+                int count = (int) ((table[indexOf(hash, i)] >>> offset) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        void increment(Value key) {
+            int hash = spread(key.hashCode());
+            int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int offset = (start + i) << 2;
+                long mask = 0xfL << offset;
+                if ((table[index] & mask) != mask) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                additions >>>= 1;
+            }
+        }
+    }
+
+    private final int maxSize;
+    private final int maxWindowSize;
+    private final int maxProtectedSize;
+
+    // 只在持有锁时修改，读操作不加锁
+    private final ConcurrentHashMap<Value, Node> nodes;
+    private final Queue window = new Queue();
+    private final Queue probation = new Queue();
+    private final Queue protectedQueue = new Queue();
+    private final FrequencySketch sketch;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // 读操作把key放入环形缓冲区，缓冲区满了或者有写操作时再批量更新访问频率和队列，来不及处理的访问会被覆盖
+    private static final int READ_BUFFER_SIZE = 64;
+    private final AtomicReferenceArray<Value> readBuffer = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+    private final AtomicLong readCount = new AtomicLong();
+
+    // 每次失效都会增加版本号，查询开始后发生过失效的结果不能放入缓存
+    private volatile long version;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile long evictions;
+
+    private EntityCache(int maxSize) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("maxSize: " + maxSize);
+        this.maxSize = maxSize;
+        maxWindowSize = Math.max(1, maxSize / 100);
+        maxProtectedSize = (maxSize - maxWindowSize) * 8 / 10;
+        nodes = new ConcurrentHashMap<>(Math.min(maxSize, 1024));
+        sketch = new FrequencySketch(maxSize);
+    }
+
+    Model<?> get(Value key) {
+        Node n = nodes.get(key);
+        recordRead(key);
+        if (n == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return n.value;
+    }
+
+    private void recordRead(Value key) {
+        long i = readCount.getAndIncrement();
+        int index = (int) i & (READ_BUFFER_SIZE - 1);
+        readBuffer.lazySet(index, key);
+        // 缓冲区写满一轮时尝试处理，其他线程正在处理时直接返回
+        if (index == READ_BUFFER_SIZE - 1 && lock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // 调用者必须持有锁
+    private void drainReadBuffer() {
+        for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+            Value key = readBuffer.getAndSet(i, null);
+            if (key == null)
+                continue;
+            sketch.increment(key);
+            Node n = nodes.get(key);
+            if (n != null)
+                onAccess(n);
+        }
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    void put(Value key, Model<?> value, long version) {
+        lock.lock();
+        try {
+            if (this.version != version)
+                return;
+            drainReadBuffer();
+            Node n = nodes.get(key);
+            if (n != null) {
+                n.value = value;
+                onAccess(n);
+                return;
+            }
+            n = new Node(key, value);
+            n.queue = WINDOW;
+            nodes.put(key, n);
+            window.addLast(n);
+            if (window.size > maxWindowSize) {
+                Node candidate = window.first();
+                window.remove(candidate);
+                candidate.queue = PROBATION;
+                probation.addLast(candidate);
+                if (nodes.size() > maxSize)
+                    evict(candidate);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 从窗口中出来的候选者和主区域中最久没被访问的淘汰者比较访问频率，频率低的被淘汰
+    private void evict(Node candidate) {
+        Node victim = probation.first();
+        if (victim == candidate || victim == null) {
+            victim = protectedQueue.first();
+        }
+        if (victim != null && victim != candidate && sketch.frequency(candidate.key) > sketch.frequency(victim.key))
+            remove(victim);
+        else
+            remove(candidate);
+        evictions++;
+    }
+
+    private void onAccess(Node n) {
+        switch (n.queue) {
+        case WINDOW:
+            window.moveToLast(n);
+            break;
+        case PROBATION:
+            probation.remove(n);
+            n.queue = PROTECTED;
+            protectedQueue.addLast(n);
+            if (protectedQueue.size > maxProtectedSize) {
+                Node demoted = protectedQueue.first();
+                protectedQueue.remove(demoted);
+                demoted.queue = PROBATION;
+                probation.addLast(demoted);
+            }
+            break;
+        default:
+            protectedQueue.moveToLast(n);
+        }
+    }
+
+    private void remove(Node n) {
+        nodes.remove(n.key);
+        switch (n.queue) {
+        case WINDOW:
+            window.remove(n);
+            break;
+        case PROBATION:
+            probation.remove(n);
+            break;
+        default:
+            protectedQueue.remove(n);
+        }
+    }
+
+    void invalidate(Value key) {
+        lock.lock();
+        try {
+            version++;
+            Node n = nodes.get(key);
+            if (n != null)
+                remove(n);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            version++;
+            nodes.clear();
+            window.clear();
+            probation.clear();
+            protectedQueue.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public double getHitRatio() {
+        long hits = getHitCount();
+        long requests = hits + getMissCount();
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    public long getEvictionCount() {
+        return evictions;
+    }
+
+    @Override
+    public String toString() {
+        return "EntityCache[size=" + nodes.size() + ", maxSize=" + maxSize + ", hits=" + getHitCount() + ", misses="
+                + getMissCount() + ", evictions=" + evictions + "]";
+    }
+}
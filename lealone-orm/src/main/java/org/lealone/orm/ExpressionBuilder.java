@@ -18,31 +18,60 @@
 package org.lealone.orm;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 
 import org.lealone.common.util.New;
+import org.lealone.db.ServerSession;
 import org.lealone.db.result.SelectOrderBy;
 import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueBoolean;
+import org.lealone.db.value.ValueNull;
 import org.lealone.db.value.ValueString;
 import org.lealone.sql.expression.CompareLike;
 import org.lealone.sql.expression.Comparison;
 import org.lealone.sql.expression.ConditionAndOr;
+import org.lealone.sql.expression.ConditionIn;
+import org.lealone.sql.expression.ConditionNot;
 import org.lealone.sql.expression.Expression;
 import org.lealone.sql.expression.ExpressionColumn;
 import org.lealone.sql.expression.ValueExpression;
 
 public class ExpressionBuilder<T> {
 
+    // 不超过这个个数的IN列表绑定为参数，列表更长时用常量集合
+    private static final int MAX_IN_LIST_PARAMETERS = Integer.getInteger("lealone.orm.in.list.max.parameters", 64);
+
     private Model<?> model;
     private Model<?> oldModel;
     private Expression expression;
     private ArrayList<SelectOrderBy> orderList;
     private boolean isAnd = true;
+    // 记录条件的个数和第一个等值条件，用来判断是不是按主键查找
+    private int conditionCount;
+    private String keyName;
+    private Value keyValue;
+    private int inListCount;
+    // 条件的结构指纹，构建条件时逐步生成，字面值都是参数所以不包含在内，查询缓存用它代替渲染整个条件树的SQL
+    private StringBuilder fingerprint;
 
     ExpressionBuilder(Model<?> model) {
         this.model = this.oldModel = model;
     }
 
+    // dao复用时调用，orderList可能已被缓存的Select引用，所以不能clear，只能丢弃
+    void reset(Model<?> model) {
+        this.model = this.oldModel = model;
+        expression = null;
+        orderList = null;
+        isAnd = true;
+        conditionCount = 0;
+        keyName = null;
+        keyValue = null;
+        inListCount = 0;
+        fingerprint = null;
+    }
+
     void setAnd(boolean isAnd) {
         this.isAnd = isAnd;
     }
@@ -66,10 +95,26 @@ public class ExpressionBuilder<T> {
     }
 
     ExpressionBuilder<T> junction(ExpressionBuilder<T> e) {
-        setRootExpression(e.getExpression());
+        StringBuilder buff = new StringBuilder().append('(');
+        e.appendFingerprint(buff);
+        setRootExpression(e.getExpression(), buff.append(')'));
         return this;
     }
 
+    /**
+     * Append the structure of the conditions, two builders with the same fingerprint build the same expression
+     * except for the values of the parameters.
+     */
+    void appendFingerprint(StringBuilder buff) {
+        if (fingerprint != null)
+            buff.append(fingerprint);
+    }
+
+    // 加上模型的表名，关联查询时不同表的同名字段不会混淆
+    private String getColumnKey(String propertyName) {
+        return model.getTable().getTableName() + '.' + propertyName;
+    }
+
     ArrayList<SelectOrderBy> getOrderList() {
         return orderList;
     }
@@ -80,42 +125,65 @@ public class ExpressionBuilder<T> {
 
     private Comparison createComparison(String propertyName, Object value, int compareType) {
         ExpressionColumn ec = model.getExpressionColumn(propertyName);
-        ValueExpression v;
+        Value v;
         if (value instanceof Value) {
-            v = ValueExpression.get((Value) value);
+            v = (Value) value;
         } else {
-            v = ValueExpression.get(ValueString.get(value.toString()));
+            v = ValueString.get(value.toString());
         }
-        return new Comparison(getTable().getSession(), compareType, ec, v);
+        // 字面值总是作为参数，这样相同形状的查询可以复用查询计划，
+        // 创建Comparison只需要session所属的Database，所以用共享的元数据session，构建查询时不用借session
+        return new Comparison(getTable().getMetaSession(), compareType, ec, model.createParameter(v));
     }
 
     private ConditionAndOr createConditionAnd(Expression left, Expression right) {
         return new ConditionAndOr(isAnd ? ConditionAndOr.AND : ConditionAndOr.OR, left, right);
     }
 
-    private void setRootExpression(Expression e) {
+    // 条件总是和已有的条件组成左深的树，所以按顺序记录连接符和每个条件的结构就能唯一确定整个条件树
+    private void setRootExpression(Expression e, CharSequence token) {
+        conditionCount++;
+        if (fingerprint == null)
+            fingerprint = new StringBuilder();
         if (expression == null) {
             expression = e;
         } else {
             expression = createConditionAnd(expression, e);
+            fingerprint.append(isAnd ? " AND " : " OR ");
         }
+        fingerprint.append(token);
     }
 
     private void setRootExpression(String propertyName, Object value, int compareType) {
         Comparison c = createComparison(propertyName, value, compareType);
-        setRootExpression(c);
+        if (compareType == Comparison.EQUAL && expression == null) {
+            keyName = propertyName;
+            keyValue = value instanceof Value ? (Value) value : ValueString.get(value.toString());
+        }
+        setRootExpression(c, getColumnKey(propertyName) + " C" + compareType + " ?");
+    }
+
+    /**
+     * Return the property name if the condition is only an equality on this property, otherwise null.
+     */
+    String getKeyName() {
+        return conditionCount == 1 ? keyName : null;
+    }
+
+    Value getKeyValue() {
+        return conditionCount == 1 ? keyValue : null;
     }
 
     public ExpressionBuilder<T> set(String propertyName, Value value) {
-        model.addNVPair(propertyName, value);
+        model.setValue(propertyName, value);
         return this;
     }
 
     public ExpressionBuilder<T> eq(String propertyName, ModelProperty<?> p) {
         ExpressionColumn left = model.getExpressionColumn(propertyName);
         ExpressionColumn right = Model.getExpressionColumn(p);
-        Comparison c = new Comparison(getTable().getSession(), Comparison.EQUAL, left, right);
-        setRootExpression(c);
+        Comparison c = new Comparison(getTable().getMetaSession(), Comparison.EQUAL, left, right);
+        setRootExpression(c, getColumnKey(propertyName) + " = " + p.getTableName() + '.' + p.getName());
         return this;
     }
 
@@ -191,30 +259,77 @@ public class ExpressionBuilder<T> {
     }
 
     public ExpressionBuilder<T> in(String propertyName, Object... values) {
-        // TODO Auto-generated method stub
-        return this;
+        return in(propertyName, Arrays.asList(values));
     }
 
     public ExpressionBuilder<T> in(String propertyName, Collection<?> values) {
-        // TODO Auto-generated method stub
+        // 空列表时没有记录满足条件
+        if (values.isEmpty()) {
+            setRootExpression(ValueExpression.get(ValueBoolean.get(false)), "FALSE");
+            return this;
+        }
+        setRootExpression(createConditionIn(propertyName, values), getInListKey(propertyName, values));
         return this;
     }
 
     public ExpressionBuilder<T> notIn(String propertyName, Object... values) {
-        // TODO Auto-generated method stub
-        return this;
+        return notIn(propertyName, Arrays.asList(values));
     }
 
     public ExpressionBuilder<T> notIn(String propertyName, Collection<?> values) {
-        // TODO Auto-generated method stub
+        // 空列表时所有记录都满足条件
+        if (values.isEmpty())
+            return this;
+        setRootExpression(new ConditionNot(createConditionIn(propertyName, values)),
+                "NOT " + getInListKey(propertyName, values));
         return this;
     }
 
+    // 绑定为参数的IN列表只需要记录值的个数，常量列表的查询不会被缓存
+    private String getInListKey(String propertyName, Collection<?> values) {
+        return getColumnKey(propertyName) + " IN(" + values.size() + ")";
+    }
+
+    /**
+     * An IN list with at most lealone.orm.in.list.max.parameters values (default 64) is bound as parameters,
+     * so the queries with lists of the same size share one cached plan, and on an indexed column the values are
+     * looked up one by one. A longer list is built from constants, the optimizer turns it into a constant set:
+     * on an indexed column the sorted distinct values are looked up one by one, otherwise each row is checked
+     * with one hash set probe, but the query can not reuse a cached plan.
+     */
+    private ConditionIn createConditionIn(String propertyName, Collection<?> values) {
+        ExpressionColumn ec = model.getExpressionColumn(propertyName);
+        ArrayList<Expression> list = new ArrayList<>(values.size());
+        boolean parameterized = values.size() <= MAX_IN_LIST_PARAMETERS;
+        for (Object value : values) {
+            Value v;
+            if (value == null) {
+                v = ValueNull.INSTANCE;
+            } else if (value instanceof Value) {
+                v = (Value) value;
+            } else {
+                v = ValueString.get(value.toString());
+            }
+            list.add(parameterized ? model.createParameter(v) : ValueExpression.get(v));
+        }
+        if (!parameterized)
+            inListCount++;
+        return new ConditionIn(getTable().getDatabase(), ec, list);
+    }
+
+    /**
+     * Return true if there is an IN list built from constants, the query can not reuse a cached plan.
+     */
+    boolean hasInList() {
+        return inListCount > 0;
+    }
+
     public ExpressionBuilder<T> like(String propertyName, String value) {
         ExpressionColumn ec = model.getExpressionColumn(propertyName);
         ValueExpression v = ValueExpression.get(ValueString.get(value));
         CompareLike like = new CompareLike(getTable().getDatabase(), ec, v, null, false);
-        setRootExpression(like);
+        // like的模式是常量，所以也是结构的一部分
+        setRootExpression(like, getColumnKey(propertyName) + " LIKE " + v.getSQL());
         return this;
     }
 
@@ -273,6 +388,52 @@ public class ExpressionBuilder<T> {
         return null;
     }
 
+    /**
+     * Add the keyset condition (k1, k2, ...) > (v1, v2, ...) of the order list, a descending key compares with &lt;.
+     * It is expanded to k1 &gt;= v1 AND (k1 &gt; v1 OR k1 = v1 AND k2 &gt; v2 OR ...),
+     * the first term lets the engine start the index scan at the last position.
+     */
+    void seek(Value[] values) {
+        ServerSession session = getTable().getMetaSession();
+        Expression seek = null;
+        Expression prefix = null;
+        for (int i = 0; i < values.length; i++) {
+            SelectOrderBy order = orderList.get(i);
+            String name = ((ExpressionColumn) order.expression).getColumnName();
+            int compareType = order.descending ? Comparison.SMALLER : Comparison.BIGGER;
+            Expression term = new Comparison(session, compareType, model.getExpressionColumn(name),
+                    model.createParameter(values[i]));
+            if (prefix != null)
+                term = new ConditionAndOr(ConditionAndOr.AND, prefix, term);
+            seek = seek == null ? term : new ConditionAndOr(ConditionAndOr.OR, seek, term);
+            Comparison eq = new Comparison(session, Comparison.EQUAL, model.getExpressionColumn(name),
+                    model.createParameter(values[i]));
+            prefix = prefix == null ? eq : new ConditionAndOr(ConditionAndOr.AND, prefix, eq);
+        }
+        if (values.length > 1) {
+            SelectOrderBy first = orderList.get(0);
+            String name = ((ExpressionColumn) first.expression).getColumnName();
+            int compareType = first.descending ? Comparison.SMALLER_EQUAL : Comparison.BIGGER_EQUAL;
+            Comparison start = new Comparison(session, compareType, model.getExpressionColumn(name),
+                    model.createParameter(values[0]));
+            seek = new ConditionAndOr(ConditionAndOr.AND, start, seek);
+        }
+        // 不管之前用的是and还是or，keyset条件都要和整个where条件一起成立
+        conditionCount++;
+        expression = expression == null ? seek : new ConditionAndOr(ConditionAndOr.AND, expression, seek);
+        if (fingerprint == null)
+            fingerprint = new StringBuilder();
+        else
+            fingerprint.append(" AND ");
+        fingerprint.append("SEEK(");
+        for (int i = 0; i < values.length; i++) {
+            SelectOrderBy order = orderList.get(i);
+            fingerprint.append(((ExpressionColumn) order.expression).getColumnName())
+                    .append(order.descending ? " DESC " : " ASC ");
+        }
+        fingerprint.append(')');
+    }
+
     public ExpressionBuilder<T> orderBy(String propertyName, boolean isDesc) {
         if (orderList == null)
             orderList = New.arrayList();
@@ -0,0 +1,282 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.orm;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lealone.common.exceptions.DbException;
+import org.lealone.common.logging.Logger;
+import org.lealone.common.logging.LoggerFactory;
+import org.lealone.db.ServerSession;
+
+/**
+ * Group commit for the auto commit writes of the ORM.
+ * <p>
+ * The commits that arrive within lealone.orm.group.commit.window microseconds (default 1000), or up to
+ * lealone.orm.group.commit.max.batch.size commits (default 64), form a batch. The first commit of a batch waits
+ * for the others, then all of them hand their commits to the transaction engine with asyncCommit at the same time,
+ * each one in its own thread, so the log sync service of the engine covers the whole batch with one sync.
+ * Each caller blocks until its own commit is durable. A commit that is not durable after
+ * lealone.orm.group.commit.timeout milliseconds (default 10000) is logged and counted, and the caller keeps
+ * waiting, because the outcome of the commit is not known yet.
+ * </p>
+ */
+public class GroupCommit {
+
+    private static final Logger logger = LoggerFactory.getLogger(GroupCommit.class);
+
+    private static volatile boolean enabled = Boolean.getBoolean("lealone.orm.group.commit");
+    // 单位是微秒
+    private static volatile long window = Long.getLong("lealone.orm.group.commit.window", 1000);
+    private static volatile int maxBatchSize = Integer.getInteger("lealone.orm.group.commit.max.batch.size", 64);
+    // 单位是毫秒
+    private static volatile long timeout = Long.getLong("lealone.orm.group.commit.timeout", 10000);
+
+    private static final GroupCommit instance = new GroupCommit();
+
+    public static GroupCommit getInstance() {
+        return instance;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        GroupCommit.enabled = enabled;
+    }
+
+    public static long getWindow() {
+        return window;
+    }
+
+    /**
+     * Set the time in microseconds the first commit of a batch waits for the others, 0 disables the waiting.
+     */
+    public static void setWindow(long window) {
+        if (window < 0)
+            throw new IllegalArgumentException("window: " + window);
+        GroupCommit.window = window;
+    }
+
+    public static int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public static void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize <= 0)
+            throw new IllegalArgumentException("maxBatchSize: " + maxBatchSize);
+        GroupCommit.maxBatchSize = maxBatchSize;
+    }
+
+    public static long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Set the time in milliseconds after which a commit that is not durable yet is logged as slow.
+     */
+    public static void setTimeout(long timeout) {
+        if (timeout <= 0)
+            throw new IllegalArgumentException("timeout: " + timeout);
+        GroupCommit.timeout = timeout;
+    }
+
+    static void commit(ServerSession session) {
+        if (enabled)
+            instance.commitAndWait(session);
+        else
+            session.commit();
+    }
+
+    // 一批提交，第一个到达的提交负责在窗口结束时封闭这一批
+    private static class Batch {
+        final CountDownLatch sealed = new CountDownLatch(1);
+        int size;
+    }
+
+    // 正在等待更多提交的批次
+    private Batch current;
+
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicLong maxPending = new AtomicLong();
+    private final AtomicLong commitCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong maxBatch = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    private GroupCommit() {
+    }
+
+    // 每个提交都在调用者自己的线程中执行，session不会被其他线程使用，批次只决定各个提交何时一起交给日志同步服务
+    private void commitAndWait(ServerSession session) {
+        long startTime = System.nanoTime();
+        CountDownLatch latch = new CountDownLatch(1);
+        Throwable error = null;
+        updateMax(maxPending, pendingCount.incrementAndGet());
+        try {
+            joinBatch();
+            try {
+                session.asyncCommit(latch::countDown);
+            } catch (Throwable t) {
+                error = t;
+                latch.countDown();
+            }
+            awaitDurable(latch);
+        } finally {
+            pendingCount.decrementAndGet();
+        }
+        long latency = System.nanoTime() - startTime;
+        commitCount.incrementAndGet();
+        totalLatency.addAndGet(latency);
+        updateMax(maxLatency, latency);
+        if (error != null)
+            throw DbException.convert(error);
+    }
+
+    private void joinBatch() {
+        Batch batch;
+        boolean first;
+        synchronized (this) {
+            first = current == null;
+            if (first)
+                current = new Batch();
+            batch = current;
+            batch.size++;
+            if (batch.size >= maxBatchSize) {
+                current = null;
+                batch.sealed.countDown();
+            }
+        }
+        if (!first) {
+            // 第一个提交最多等待一个窗口就会封闭这一批
+            await(batch.sealed, -1);
+            return;
+        }
+        long w = window;
+        if (w > 0)
+            await(batch.sealed, TimeUnit.MICROSECONDS.toNanos(w));
+        int size;
+        synchronized (this) {
+            if (current == batch)
+                current = null;
+            size = batch.size;
+        }
+        batch.sealed.countDown();
+        batchCount.incrementAndGet();
+        updateMax(maxBatch, size);
+    }
+
+    // 提交已经交给了日志同步服务，结果未知时不能报告失败，超时后只记录下来然后继续等待
+    private void awaitDurable(CountDownLatch latch) {
+        long t = TimeUnit.MILLISECONDS.toNanos(timeout);
+        if (!await(latch, t)) {
+            timeoutCount.incrementAndGet();
+            logger.warn("Commit is not durable after " + timeout + " ms, still waiting");
+            await(latch, -1);
+        }
+    }
+
+    // 等待时不响应中断，中断状态在返回前恢复，nanos为负数时一直等待
+    private static boolean await(CountDownLatch latch, long nanos) {
+        boolean interrupted = false;
+        long deadline = System.nanoTime() + nanos;
+        try {
+            while (true) {
+                try {
+                    if (nanos < 0) {
+                        latch.await();
+                        return true;
+                    }
+                    return latch.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long old;
+        while (value > (old = max.get())) {
+            if (max.compareAndSet(old, value))
+                break;
+        }
+    }
+
+    public long getCommitCount() {
+        return commitCount.get();
+    }
+
+    /**
+     * Return the number of the batches, each batch is handed to the log sync service at the same time.
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    public double getAverageBatchSize() {
+        long batches = batchCount.get();
+        return batches == 0 ? 0 : (double) commitCount.get() / batches;
+    }
+
+    public long getMaxBatchSizeSeen() {
+        return maxBatch.get();
+    }
+
+    /**
+     * Return the number of the commits that were not durable within the timeout.
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    /**
+     * Return the commits waiting for their batch or for the log sync now.
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * Return the maximum number of the commits that waited for their batch or for the log sync at the same time.
+     */
+    public long getMaxPendingCount() {
+        return maxPending.get();
+    }
+
+    /**
+     * Return the average time in microseconds from the commit request to the durable commit.
+     */
+    public long getAverageCommitLatency() {
+        long commits = commitCount.get();
+        return commits == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalLatency.get() / commits);
+    }
+
+    public long getMaxCommitLatency() {
+        return TimeUnit.NANOSECONDS.toMicros(maxLatency.get());
+    }
+}
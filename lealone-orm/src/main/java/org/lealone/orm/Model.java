@@ -18,16 +18,30 @@
 package org.lealone.orm;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.EmptyStackException;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ConcurrentSkipListMap;
-
-import org.lealone.common.logging.Logger;
-import org.lealone.common.logging.LoggerFactory;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.lealone.common.exceptions.DbException;
 import org.lealone.common.util.New;
 import org.lealone.db.ServerSession;
+import org.lealone.db.constraint.ConstraintReferential;
 import org.lealone.db.index.Index;
 import org.lealone.db.result.Result;
 import org.lealone.db.result.SelectOrderBy;
@@ -37,17 +51,25 @@ import org.lealone.db.table.TableFilter;
 import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueInt;
 import org.lealone.db.value.ValueLong;
+import org.lealone.db.value.ValueNull;
+import org.lealone.db.value.ValueString;
 import org.lealone.orm.property.PBaseNumber;
+import org.lealone.orm.property.PDouble;
+import org.lealone.orm.property.PInteger;
+import org.lealone.orm.property.PLong;
+import org.lealone.sql.StatementBase;
 import org.lealone.sql.dml.Delete;
 import org.lealone.sql.dml.Insert;
+import org.lealone.sql.dml.Merge;
 import org.lealone.sql.dml.Select;
 import org.lealone.sql.dml.Update;
 import org.lealone.sql.expression.Expression;
 import org.lealone.sql.expression.ExpressionColumn;
+import org.lealone.sql.expression.Operation;
+import org.lealone.sql.expression.Parameter;
 import org.lealone.sql.expression.ValueExpression;
 import org.lealone.sql.expression.Wildcard;
 import org.lealone.sql.expression.aggregate.Aggregate;
-import org.lealone.transaction.Transaction;
 
 import com.fasterxml.jackson.databind.JsonNode;
 
@@ -70,10 +92,13 @@ public abstract class Model<T> {
     public static final short ROOT_DAO = 1;
     public static final short CHILD_DAO = 2;
 
-    private static final Logger logger = LoggerFactory.getLogger(Model.class);
+    public static final int DEFAULT_BATCH_SIZE = Integer.getInteger("lealone.orm.batch.size", 1000);
+
+    private static final Pattern IN_LIST_PATTERN = Pattern.compile("IN\\([^()]*\\)");
+    private static volatile boolean lazyDecoding = Boolean.getBoolean("lealone.orm.lazy.decoding");
 
-    private static final ConcurrentSkipListMap<Long, ServerSession> currentSessions = new ConcurrentSkipListMap<>();
-    private static final ConcurrentSkipListMap<Integer, List<ServerSession>> sessionMap = new ConcurrentSkipListMap<>();
+    // 事务中修改过的模型类，事务结束时需要再次清空它们的实体缓存
+    private static final ConcurrentHashMap<Long, Set<EntityCache>> pendingEntityCaches = new ConcurrentHashMap<>();
 
     private class PRowId extends PBaseNumber<T, Long> {
 
@@ -89,21 +114,15 @@ public abstract class Model<T> {
             super(name, root);
         }
 
-        // 不需要通过外部设置
+        // 不需要通过外部设置，也不需要作为待更新的字段
         T set(long value) {
-            if (!areEqual(this.value, value)) {
-                this.value = value;
-                expr().set(name, ValueLong.get(value));
-            }
+            this.value = value;
             return root;
         }
 
         @Override
-        public final T deserialize(HashMap<String, Value> map) {
-            Value v = map.get(getFullName());
-            if (v != null) {
-                value = v.getLong();
-            }
+        public final T deserialize(Value v) {
+            value = v.getLong();
             return root;
         }
 
@@ -113,46 +132,169 @@ public abstract class Model<T> {
 
     }
 
-    private static class NVPair {
-        public final String name;
-        public final Value value;
+    /**
+     * The layout of the field values shared by all instances of a model class.
+     * <p>
+     * Primitive values are kept in a long array and the others in an object array,
+     * so a model instance only needs a few arrays instead of a map and a value holder per property.
+     * </p>
+     */
+    static class ModelLayout {
+
+        private static final ConcurrentHashMap<Class<?>, ModelLayout> layouts = new ConcurrentHashMap<>();
+
+        private final HashMap<String, Integer> indexes;
+        private final int[] slots;
+        private final int primitiveCount;
+        private final int objectCount;
+
+        private ModelLayout(ModelProperty[] properties) {
+            int len = properties.length;
+            indexes = new HashMap<>(len);
+            slots = new int[len];
+            int primitiveCount = 0;
+            int objectCount = 0;
+            for (int i = 0; i < len; i++) {
+                indexes.put(properties[i].getName(), i);
+                slots[i] = properties[i].isPrimitive() ? primitiveCount++ : objectCount++;
+            }
+            this.primitiveCount = primitiveCount;
+            this.objectCount = objectCount;
+        }
 
-        public NVPair(String name, Value value) {
-            this.name = name;
-            this.value = value;
+        static ModelLayout get(Class<?> modelClass, ModelProperty[] properties) {
+            ModelLayout layout = layouts.get(modelClass);
+            if (layout == null) {
+                layout = new ModelLayout(properties);
+                ModelLayout old = layouts.putIfAbsent(modelClass, layout);
+                if (old != null)
+                    layout = old;
+            }
+            return layout;
         }
+    }
 
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + ((name == null) ? 0 : name.hashCode());
-            return result;
+    /**
+     * The mapping from result columns to the properties of a model and its associate models.
+     * It is resolved once per result, then the values of each row are assigned by ordinal.
+     */
+    static class RowMapping {
+
+        private final HashMap<String, Integer> columnIndexes;
+        private final int rowIdIndex;
+        private final int[] propertyIndexes;
+        // 延迟解码时每个模型都从这个位图的副本开始，只有结果中存在的字段才需要解码
+        private final long[] lazyBits;
+        private final int lazyCount;
+        // 结果中有其他表的字段时才需要创建关联模型
+        private boolean joined;
+        private boolean lazy;
+        // 查询结果中的模型不使用dao的ModelTable，因为dao会被复用
+        private ModelTable resultTable;
+
+        private RowMapping(HashMap<String, Integer> columnIndexes, Model<?> m) {
+            this.columnIndexes = columnIndexes;
+            rowIdIndex = getColumnIndex(m._rowid_);
+            int len = m.modelProperties.length;
+            propertyIndexes = new int[len];
+            lazyBits = new long[(len + 63) >>> 6];
+            int count = 0;
+            for (int i = 0; i < len; i++) {
+                propertyIndexes[i] = getColumnIndex(m.modelProperties[i]);
+                if (propertyIndexes[i] >= 0) {
+                    setBit(lazyBits, i);
+                    count++;
+                }
+            }
+            lazyCount = count;
         }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj)
-                return true;
-            if (obj == null)
-                return false;
-            if (getClass() != obj.getClass())
-                return false;
-            NVPair other = (NVPair) obj;
-            if (name == null) {
-                if (other.name != null)
-                    return false;
-            } else if (!name.equals(other.name))
-                return false;
-            return true;
+        private int getColumnIndex(ModelProperty<?> p) {
+            Integer index = columnIndexes.get(p.getFullName());
+            return index == null ? -1 : index.intValue();
+        }
+
+        static RowMapping create(Result result, Model<?> m, boolean lazy) {
+            Value[] row = result.currentRow();
+            if (row == null)
+                return null;
+            int len = row.length;
+            HashMap<String, Integer> columnIndexes = new HashMap<>(len);
+            boolean joined = false;
+            for (int i = 0; i < len; i++) {
+                String tableName = result.getTableName(i);
+                String key = result.getSchemaName(i) + "." + tableName + "." + result.getColumnName(i);
+                columnIndexes.put(key, i);
+                if (!joined && tableName != null && !tableName.equals(m.getTableName()))
+                    joined = true;
+            }
+            RowMapping mapping = new RowMapping(columnIndexes, m);
+            mapping.resultTable = m.modelTable.copy();
+            mapping.joined = joined;
+            mapping.lazy = lazy;
+            return mapping;
+        }
+
+        // 关联模型和主模型使用同一份字段序号
+        RowMapping createAssociateMapping(Model<?> m) {
+            RowMapping mapping = new RowMapping(columnIndexes, m);
+            mapping.resultTable = m.modelTable.copy();
+            mapping.joined = joined;
+            mapping.lazy = lazy;
+            return mapping;
+        }
+
+        boolean isJoined() {
+            return joined;
+        }
+
+        boolean hasRowId() {
+            return rowIdIndex >= 0;
+        }
+
+        ModelTable getResultTable() {
+            return resultTable;
+        }
+
+        long getRowId(Value[] row) {
+            return rowIdIndex >= 0 ? row[rowIdIndex].getLong() : 0;
         }
 
+        Value getRowIdValue(Value[] row) {
+            return rowIdIndex >= 0 ? row[rowIdIndex] : null;
+        }
+
+        void deserializeRowId(Model<?> m, Value[] row) {
+            if (rowIdIndex >= 0)
+                m._rowid_.deserialize(row[rowIdIndex]);
+        }
+
+        void deserializeProperties(Model<?> m, Value[] row) {
+            // 延迟解码时只保存整行的引用，第一次读取字段时才解码
+            if (lazy && lazyCount > 0) {
+                m.lazyRow = row;
+                m.lazyIndexes = propertyIndexes;
+                m.lazyBits = lazyBits.clone();
+                m.lazyCount = lazyCount;
+                return;
+            }
+            ModelProperty[] properties = m.modelProperties;
+            for (int i = 0, len = propertyIndexes.length; i < len; i++) {
+                int index = propertyIndexes[i];
+                if (index >= 0)
+                    m.deserializeValue(properties[i], row[index]);
+            }
+        }
     }
 
     @SuppressWarnings("unchecked")
     private final PRowId _rowid_ = new PRowId(Column.ROWID, (T) this);
 
     private final ModelTable modelTable;
+    // 当前操作从session池借来的session，只属于这个模型实例，操作结束时归还，多个模型共用ModelTable也不会互相干扰
+    private ServerSession session;
+    // 当前操作使用的事务，操作结束前回收线程不会回滚它
+    private TransactionContext transactionContext;
 
     /**
      * The root model bean instance. Used to provide fluid query construction.
@@ -160,11 +302,18 @@ public abstract class Model<T> {
     private T root;
 
     // 以下字段不是必须的，所以延迟初始化，避免浪费不必要的内存
-    private HashSet<NVPair> nvPairs;
     private ArrayList<Expression> selectExpressions;
+    // select(...)指定的字段和聚合函数，聚合函数要在创建Select时重新生成
+    private SelectItem[] selectItems;
     private ArrayList<Expression> groupExpressions;
     private ExpressionBuilder<T> having;
     private ExpressionBuilder<T> whereExpressionBuilder;
+    private ArrayList<Parameter> parameters;
+    private int fetchSize;
+    private int limit = -1;
+    private int offset;
+    private boolean lazy;
+    private ArrayList<Model<?>> includes;
 
     /**
     * The underlying expression builders held as a stack. Pushed and popped based on and/or (conjunction/disjunction).
@@ -172,11 +321,25 @@ public abstract class Model<T> {
     private ArrayStack<ExpressionBuilder<T>> expressionBuilderStack;
 
     private ArrayStack<TableFilter> tableFilterStack;
-    private HashMap<String, ModelProperty> modelPropertiesMap;
-
     ModelProperty[] modelProperties;
+    private ModelLayout layout;
+    // 字段值按ModelLayout分配的槽位存放，基本类型的值存放在primitiveValues中，其他类型的存放在objectValues中
+    private long[] primitiveValues;
+    private Object[] objectValues;
+    // 按字段序号存放的位图，按需分配，dirtyBits标记需要写入数据库的字段，nullBits标记值为null的基本类型字段
+    private long[] dirtyBits;
+    private long[] nullBits;
+    // 按字段序号存放的update赋值表达式，比如count = count + 1，由数据库计算新值
+    private Expression[] assignments;
+    // 延迟解码的行，lazyIndexes是字段在行中的位置，lazyBits标记还没有解码的字段，全部解码后就不再引用这一行
+    private Value[] lazyRow;
+    private int[] lazyIndexes;
+    private long[] lazyBits;
+    private int lazyCount;
     // 0: regular model; 1: root dao; 2: child dao
     short modelType;
+    // 根dao在每个线程中保留一个空闲的子dao，只有从没交给调用者的子dao才会放回来
+    private final ThreadLocal<Model<T>> idleChildDao;
 
     private ArrayList<Model<?>> modelList;
     private HashMap<Class, ArrayList<Model<?>>> modelMap;
@@ -184,6 +347,7 @@ public abstract class Model<T> {
     protected Model(ModelTable table, short modelType) {
         this.modelTable = table;
         this.modelType = modelType;
+        idleChildDao = modelType == ROOT_DAO ? new ThreadLocal<>() : null;
     }
 
     ModelTable getTable() {
@@ -196,14 +360,168 @@ public abstract class Model<T> {
 
     protected void setModelProperties(ModelProperty[] modelProperties) {
         this.modelProperties = modelProperties;
-        modelPropertiesMap = new HashMap<>(modelProperties.length);
-        for (ModelProperty p : modelProperties) {
-            modelPropertiesMap.put(p.getName(), p);
+        layout = ModelLayout.get(getClass(), modelProperties);
+        for (int i = 0, len = modelProperties.length; i < len; i++) {
+            modelProperties[i].index = i;
         }
+        if (layout.primitiveCount > 0)
+            primitiveValues = new long[layout.primitiveCount];
+        if (layout.objectCount > 0)
+            objectValues = new Object[layout.objectCount];
     }
 
     ModelProperty getModelProperty(String name) {
-        return modelPropertiesMap.get(name);
+        Integer index = layout.indexes.get(name);
+        return index == null ? null : modelProperties[index];
+    }
+
+    long getPrimitiveValue(int index) {
+        if (lazyRow != null)
+            decodeLazyValue(index);
+        return primitiveValues[layout.slots[index]];
+    }
+
+    void setPrimitiveValue(int index, long value) {
+        if (lazyRow != null)
+            clearLazyValue(index);
+        primitiveValues[layout.slots[index]] = value;
+        if (nullBits != null)
+            clearBit(nullBits, index);
+    }
+
+    Object getObjectValue(int index) {
+        if (lazyRow != null)
+            decodeLazyValue(index);
+        return objectValues[layout.slots[index]];
+    }
+
+    void setObjectValue(int index, Object value) {
+        if (lazyRow != null)
+            clearLazyValue(index);
+        objectValues[layout.slots[index]] = value;
+    }
+
+    boolean isNullValue(int index) {
+        if (lazyRow != null)
+            decodeLazyValue(index);
+        if (modelProperties[index].isPrimitive())
+            return nullBits != null && getBit(nullBits, index);
+        else
+            return objectValues[layout.slots[index]] == null;
+    }
+
+    private void setNullValue(int index) {
+        if (lazyRow != null)
+            clearLazyValue(index);
+        if (modelProperties[index].isPrimitive()) {
+            primitiveValues[layout.slots[index]] = 0;
+            if (nullBits == null)
+                nullBits = newBits();
+            setBit(nullBits, index);
+        } else {
+            objectValues[layout.slots[index]] = null;
+        }
+    }
+
+    void markDirty(int index) {
+        if (dirtyBits == null)
+            dirtyBits = newBits();
+        setBit(dirtyBits, index);
+    }
+
+    private boolean isDirty(int index) {
+        return dirtyBits != null && getBit(dirtyBits, index);
+    }
+
+    private long[] newBits() {
+        return new long[(modelProperties.length + 63) >>> 6];
+    }
+
+    private static boolean getBit(long[] bits, int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    private static void setBit(long[] bits, int index) {
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    private static void clearBit(long[] bits, int index) {
+        bits[index >>> 6] &= ~(1L << index);
+    }
+
+    private void decodeLazyValue(int index) {
+        if (getBit(lazyBits, index)) {
+            Value v = lazyRow[lazyIndexes[index]];
+            clearLazyValue(index);
+            deserializeValue(modelProperties[index], v);
+        }
+    }
+
+    // 字段已经解码或者被调用者重新赋值了，行中的值不再需要
+    private void clearLazyValue(int index) {
+        if (getBit(lazyBits, index)) {
+            clearBit(lazyBits, index);
+            if (--lazyCount == 0) {
+                lazyRow = null;
+                lazyIndexes = null;
+                lazyBits = null;
+            }
+        }
+    }
+
+    private void decodeLazyValues() {
+        for (int i = 0, len = modelProperties.length; lazyRow != null && i < len; i++)
+            decodeLazyValue(i);
+    }
+
+    /**
+     * Return true if some properties of this model are not decoded from the row of the query result yet.
+     */
+    public boolean hasLazyValues() {
+        return lazyRow != null;
+    }
+
+    // 从数据库或表达式中得到的值，null值统一在这里处理
+    private void deserializeValue(ModelProperty p, Value v) {
+        if (v == ValueNull.INSTANCE)
+            setNullValue(p.index);
+        else
+            p.deserialize(v);
+    }
+
+    /**
+     * Return the value of the property as a database value.
+     */
+    Value getValue(int index) {
+        if (isNullValue(index))
+            return ValueNull.INSTANCE;
+        return modelProperties[index].toValue();
+    }
+
+    // 新值是字段的当前值加上delta，只用于update
+    void addAssignment(int index, Value delta) {
+        if (assignments == null)
+            assignments = new Expression[modelProperties.length];
+        Expression left = assignments[index];
+        if (left == null)
+            left = getExpressionColumn(modelProperties[index].getName());
+        // delta也绑定为参数，这样不同的delta可以复用同一个缓存的Update
+        assignments[index] = new Operation(Operation.PLUS, left, createParameter(delta));
+        markDirty(index);
+    }
+
+    private int[] getDirtyIndexes() {
+        if (dirtyBits == null)
+            return new int[0];
+        int count = 0;
+        for (long bits : dirtyBits)
+            count += Long.bitCount(bits);
+        int[] indexes = new int[count];
+        for (int i = 0, j = 0, len = modelProperties.length; i < len; i++) {
+            if (getBit(dirtyBits, i))
+                indexes[j++] = i;
+        }
+        return indexes;
     }
 
     /**
@@ -230,47 +548,104 @@ public abstract class Model<T> {
         return root;
     }
 
+    // 同一个关联模型只会被加入一次，所以直接返回只读视图
     @SuppressWarnings("unchecked")
     protected <M> List<M> getModelList(Class c) {
-        ArrayList<Model<?>> oldList = modelMap.get(c);
-        if (oldList == null) {
+        if (modelMap == null) {
             return null;
         }
-        ArrayList<Model<?>> newList = new ArrayList<>(oldList.size());
-        HashMap<Long, Long> map = new HashMap<>(oldList.size());
-        for (Model<?> m : oldList) {
-            Long id = m._rowid_.get();
-            if (map.put(id, id) == null) {
-                newList.add(m);
-            }
+        ArrayList<Model<?>> list = modelMap.get(c);
+        if (list == null) {
+            return null;
         }
-        return (List<M>) newList;
+        return (List<M>) Collections.unmodifiableList(list);
     }
 
-    void addNVPair(String name, Value value) {
-        if (nvPairs == null) {
-            nvPairs = new HashSet<>();
-        }
-        nvPairs.add(new NVPair(name, value));
+    Parameter createParameter(Value value) {
+        ArrayList<Parameter> parameters = getParameters();
+        Parameter p = new Parameter(parameters.size());
+        p.setValue(value);
+        parameters.add(p);
+        return p;
+    }
+
+    void setValue(String name, Value value) {
+        ModelProperty p = getModelProperty(name);
+        if (p == null)
+            throw new IllegalArgumentException("Property not found: " + name);
+        deserializeValue(p, value);
+        markDirty(p.index);
     }
 
     private void reset() {
-        nvPairs = null;
+        dirtyBits = null;
+        assignments = null;
         selectExpressions = null;
+        selectItems = null;
         groupExpressions = null;
         having = null;
-        whereExpressionBuilder = null;
-        expressionBuilderStack = null;
+        // 表达式构建器和栈可以复用，但是参数列表和排序列表可能已经被缓存的Select引用了，只能丢弃
+        if (whereExpressionBuilder != null)
+            whereExpressionBuilder.reset(this);
+        parameters = null;
+        fetchSize = 0;
+        limit = -1;
+        offset = 0;
+        lazy = false;
+        includes = null;
+        if (expressionBuilderStack != null)
+            expressionBuilderStack.clear();
         tableFilterStack = null;
     }
 
-    private ExpressionBuilder<T> getWhereExpressionBuilder() {
+    // 操作结束后把session还给session池。
+    // 子dao会被调用者持有(where()返回的就是它)，所以不能回收给其他查询复用；
+    // 异步操作的回调在其他线程中执行，也不能在这里reset，查询状态已经在执行前由调用线程清空了
+    private void release() {
+        releaseSession();
+        if (transactionContext != null) {
+            TransactionContext context = transactionContext;
+            transactionContext = null;
+            context.release();
+        }
+    }
+
+    private ServerSession borrowSession() {
+        if (session == null)
+            session = modelTable.borrowSession();
+        return session;
+    }
+
+    private void releaseSession() {
+        if (session != null) {
+            ServerSession s = session;
+            session = null;
+            modelTable.returnSession(s);
+        }
+    }
+
+    // session被缓存的语句接管，不再归还给session池
+    private ServerSession detachSession() {
+        ServerSession s = borrowSession();
+        session = null;
+        modelTable.detachSession(s);
+        return s;
+    }
+
+    ExpressionBuilder<T> getWhereExpressionBuilder() {
         if (whereExpressionBuilder == null) {
             whereExpressionBuilder = new ExpressionBuilder<T>(this);
         }
         return whereExpressionBuilder;
     }
 
+    private ArrayList<Parameter> getParameters() {
+        if (parameters == null) {
+            parameters = new ArrayList<>();
+        }
+        return parameters;
+    }
+
     private ArrayList<Expression> getSelectExpressions() {
         if (selectExpressions == null) {
             selectExpressions = New.arrayList();
@@ -290,20 +665,40 @@ public abstract class Model<T> {
         return modelTable.getTableName();
     }
 
-    @SafeVarargs
-    public final T select(ModelProperty<?>... properties) {
+    /**
+     * Select the given properties and aggregates, such as dao.name, dao.amount.sum() or dao.id.countDistinct().
+     */
+    public final T select(SelectItem... items) {
         Model<T> m = maybeCopy();
         if (m != this) {
-            return m.select(properties);
-        }
-        selectExpressions = new ArrayList<>();
-        for (ModelProperty<?> p : properties) {
-            ExpressionColumn c = getExpressionColumn(p);
-            selectExpressions.add(c);
+            return m.select(items);
         }
+        selectItems = items;
+        selectExpressions = createSelectExpressions(null);
         return root;
     }
 
+    private ArrayList<Expression> createSelectExpressions(Select select) {
+        ArrayList<Expression> expressions = new ArrayList<>(selectItems.length + 1);
+        for (SelectItem item : selectItems) {
+            if (item instanceof AggregateProperty)
+                expressions.add(((AggregateProperty<?>) item).createExpression(select));
+            else
+                expressions.add(getExpressionColumn((ModelProperty<?>) item));
+        }
+        return expressions;
+    }
+
+    private boolean hasAggregates() {
+        if (selectItems != null) {
+            for (SelectItem item : selectItems) {
+                if (item instanceof AggregateProperty)
+                    return true;
+            }
+        }
+        return false;
+    }
+
     public T orderBy() {
         Model<T> m = maybeCopy();
         if (m != this) {
@@ -404,6 +799,207 @@ public abstract class Model<T> {
         System.out.println(sql);
     }
 
+    /**
+     * Keep a reference to the row of the query result in each model and decode a property only when it is read,
+     * the properties that are never read are never converted.
+     * <p>
+     * It can be enabled for all the queries with lealone.orm.lazy.decoding=true.
+     * </p>
+     */
+    public T lazy() {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return m.lazy();
+        }
+        checkDao("lazy");
+        lazy = true;
+        return root;
+    }
+
+    private boolean isLazy() {
+        return lazy || lazyDecoding;
+    }
+
+    public static boolean isLazyDecodingEnabled() {
+        return lazyDecoding;
+    }
+
+    public static void setLazyDecodingEnabled(boolean enabled) {
+        lazyDecoding = enabled;
+    }
+
+    /**
+     * Load the associate models of the given dao after the query of findOne, findList or findPage,
+     * with one IN query on the foreign key for all the models instead of one query per model or a join.
+     */
+    public T include(Model<?> associateDao) {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return m.include(associateDao);
+        }
+        checkDao("include");
+        if (includes == null)
+            includes = new ArrayList<>(1);
+        includes.add(associateDao);
+        return root;
+    }
+
+    /**
+     * Return at most the given number of models.
+     */
+    public T limit(int limit) {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return m.limit(limit);
+        }
+        if (limit < 0)
+            throw new IllegalArgumentException("limit: " + limit);
+        this.limit = limit;
+        return root;
+    }
+
+    /**
+     * Skip the given number of models, the skipped rows are still read, use {@link #after(Object)} for deep pages.
+     */
+    public T offset(int offset) {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return m.offset(offset);
+        }
+        if (offset < 0)
+            throw new IllegalArgumentException("offset: " + offset);
+        this.offset = offset;
+        return root;
+    }
+
+    /**
+     * Only return the models after the given one in the current order, the rowid is appended to the order
+     * so that every row has a unique position. The order by properties should not be null.
+     */
+    public T after(T lastModel) {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return m.after(lastModel);
+        }
+        String[] names = getKeysetOrder("after");
+        Model<?> last = (Model<?>) lastModel;
+        Value[] values = new Value[names.length];
+        for (int i = 0; i < names.length; i++)
+            values[i] = last.getPropertyValue(names[i]);
+        getWhereExpressionBuilder().seek(values);
+        return root;
+    }
+
+    /**
+     * Only return the models after the position of the continuation token returned by {@link #findPage(int)},
+     * the order must be the same as the one of the previous page.
+     */
+    public T after(String continuationToken) {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return m.after(continuationToken);
+        }
+        String[] names = getKeysetOrder("after");
+        Value[] values = Page.decode(continuationToken);
+        if (values.length != names.length)
+            throw new IllegalArgumentException("The continuation token does not match the order: " + continuationToken);
+        getWhereExpressionBuilder().seek(values);
+        return root;
+    }
+
+    /**
+     * Only return the models whose order by properties are after the given values, one value per order by property.
+     */
+    public T seek(Object... lastValues) {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return m.seek(lastValues);
+        }
+        checkNotJoined("seek");
+        ArrayList<SelectOrderBy> orderList = getWhereExpressionBuilder().getOrderList();
+        if (orderList == null || orderList.size() != lastValues.length)
+            throw new IllegalArgumentException("One value is required for each order by property");
+        Value[] values = new Value[lastValues.length];
+        for (int i = 0; i < values.length; i++) {
+            Object v = lastValues[i];
+            if (v == null)
+                values[i] = ValueNull.INSTANCE;
+            else if (v instanceof Value)
+                values[i] = (Value) v;
+            else
+                values[i] = ValueString.get(v.toString());
+        }
+        getWhereExpressionBuilder().seek(values);
+        return root;
+    }
+
+    private void checkNotJoined(String methodName) {
+        checkDao(methodName);
+        if (tableFilterStack != null && !tableFilterStack.isEmpty())
+            throw new UnsupportedOperationException("The " + methodName + " operation is not allowed for join queries");
+    }
+
+    // 排序字段的值可能重复，所以总是用rowid作为最后一个排序字段
+    private String[] getKeysetOrder(String methodName) {
+        checkNotJoined(methodName);
+        ExpressionBuilder<T> e = getWhereExpressionBuilder();
+        ArrayList<SelectOrderBy> orderList = e.getOrderList();
+        if (orderList == null || orderList.isEmpty()
+                || !Column.ROWID.equals(getOrderColumnName(orderList.get(orderList.size() - 1))))
+            e.orderBy(Column.ROWID, false);
+        orderList = e.getOrderList();
+        String[] names = new String[orderList.size()];
+        for (int i = 0; i < names.length; i++)
+            names[i] = getOrderColumnName(orderList.get(i));
+        return names;
+    }
+
+    private static String getOrderColumnName(SelectOrderBy order) {
+        if (!(order.expression instanceof ExpressionColumn))
+            throw new UnsupportedOperationException("Keyset pagination only supports ordering by properties");
+        return ((ExpressionColumn) order.expression).getColumnName();
+    }
+
+    Value getPropertyValue(String name) {
+        if (Column.ROWID.equals(name))
+            return ValueLong.get(_rowid_.get());
+        ModelProperty<?> p = getModelProperty(name);
+        if (p == null)
+            throw new IllegalArgumentException("Property not found: " + name);
+        return getValue(p.index);
+    }
+
+    /**
+     * Return one page of models and the continuation token of the next page, the deep pages are as cheap
+     * as the first one when the order by properties are indexed.
+     */
+    public Page<T> findPage(int pageSize) {
+        return findPage(pageSize, null);
+    }
+
+    public Page<T> findPage(int pageSize, Long tid) {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return reclaim(m, m.findPage(pageSize, tid));
+        }
+        if (pageSize <= 0)
+            throw new IllegalArgumentException("pageSize: " + pageSize);
+        String[] names = getKeysetOrder("findPage");
+        // 多取一条记录，用来判断是否还有下一页
+        limit = pageSize + 1;
+        List<T> list = findList(tid);
+        String token = null;
+        if (list.size() > pageSize) {
+            list.remove(pageSize);
+            Model<?> last = (Model<?>) list.get(pageSize - 1);
+            Value[] values = new Value[names.length];
+            for (int i = 0; i < names.length; i++)
+                values[i] = last.getPropertyValue(names[i]);
+            token = Page.encode(values);
+        }
+        return new Page<>(list, token);
+    }
+
     // TODO
     public T not() {
         Model<T> m = maybeCopy();
@@ -414,6 +1010,14 @@ public abstract class Model<T> {
         return root;
     }
 
+    private void checkNotDao(String methodName) {
+        if (isDao()) {
+            String name = this.getClass().getSimpleName();
+            throw new UnsupportedOperationException("The " + methodName + " operation is not allowed for " + name
+                    + ".dao,  please use new " + name + "()." + methodName + "() instead.");
+        }
+    }
+
     private void checkDao(String methodName) {
         if (!isDao()) {
             throw new UnsupportedOperationException("The " + methodName + " operation is not allowed, please use "
@@ -444,115 +1048,587 @@ public abstract class Model<T> {
         return findOne(null);
     }
 
+    @SuppressWarnings("unchecked")
     public T findOne(Long tid) {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return reclaim(m, m.findOne(tid));
+        }
         checkDao("findOne");
         // 进行关联查询时，主表取一条记录，但引用表要取多条
         if (tableFilterStack != null && !tableFilterStack.isEmpty()) {
-            List<T> list = findList();
+            List<T> list = findList(tid);
             if (!list.isEmpty()) {
                 return list.get(0);
             } else {
                 return null;
             }
         }
-        Select select = createSelect(tid);
-        select.setLimit(ValueExpression.get(ValueInt.get(1)));
-        select.init();
-        select.prepare();
-        logger.info("execute sql: " + select.getPlanSQL());
-        Result result = select.executeQuery(1);
-        result.next();
-        reset();
-        return deserialize(result, new HashMap<>(1), new ArrayList<>(1));
-    }
-
-    private Select createSelect(Long tid) {
-        ServerSession session = getSession(tid);
-        Select select = new Select(session);
-        TableFilter tableFilter;
-        if (tableFilterStack != null && !tableFilterStack.isEmpty()) {
-            tableFilter = tableFilterStack.peek();
-            select.addTableFilter(tableFilter, true);
-            boolean selectExpressionsIsNull = false;
-            if (selectExpressions == null) {
-                selectExpressionsIsNull = true;
-                getSelectExpressions().add(new Wildcard(tableFilter.getSchemaName(), tableFilter.getTableAlias()));
-            }
-            selectExpressions.add(getExpressionColumn(tableFilter, Column.ROWID)); // 总是获取rowid
-            while (tableFilter.getJoin() != null) {
-                select.addTableFilter(tableFilter.getJoin(), false);
-                tableFilter = tableFilter.getJoin();
-                if (selectExpressionsIsNull)
-                    selectExpressions.add(new Wildcard(tableFilter.getSchemaName(), tableFilter.getTableAlias()));
-                selectExpressions.add(getExpressionColumn(tableFilter, Column.ROWID)); // 总是获取rowid
+        ArrayList<Model<?>> includes = this.includes;
+        boolean lazy = isLazy();
+        // 按主键查找时先查实体缓存
+        Value entityKey = getEntityKey(tid);
+        EntityCache entityCache = null;
+        long entityCacheVersion = 0;
+        if (entityKey != null) {
+            entityCache = getEntityCache();
+            Model<?> cached = entityCache.get(entityKey);
+            if (cached != null) {
+                reset();
+                release();
+                T t = (T) cached.copyEntity();
+                if (includes != null)
+                    AssociationLoader.load(Collections.singletonList(t), includes, tid);
+                return t;
             }
-        } else {
-            tableFilter = new TableFilter(session, modelTable.getTable(), null, true, null);
-            select.addTableFilter(tableFilter, true);
-            if (selectExpressions == null) {
-                getSelectExpressions().add(new Wildcard(null, null));
-            }
-            selectExpressions.add(getExpressionColumn(Column.ROWID)); // 总是获取rowid
-        }
-        select.setExpressions(selectExpressions);
-        if (whereExpressionBuilder != null)
-            select.addCondition(whereExpressionBuilder.getExpression());
-        if (groupExpressions != null) {
-            select.setGroupQuery();
-            select.setGroupBy(groupExpressions);
-            select.setHaving(having.getExpression());
-        }
-        if (whereExpressionBuilder != null)
-            select.setOrder(whereExpressionBuilder.getOrderList());
+            entityCacheVersion = entityCache.getVersion();
+        }
+        // 并发的主键查找合并成一个IN查询
+        BatchLoader<T> batchLoader = lazy ? null : getBatchLoader();
+        Value batchKey = batchLoader == null ? null : getPointLookupKey(tid);
+        if (batchKey != null) {
+            reset();
+            release();
+            T t = batchLoader.load(batchKey);
+            putEntity(entityCache, entityKey, entityCacheVersion, t);
+            if (includes != null && t != null)
+                AssociationLoader.load(Collections.singletonList(t), includes, tid);
+            return t;
+        }
+        EntityCache cache = entityCache;
+        long version = entityCacheVersion;
+        T t = executeQuery(tid, "findOne", 1, result -> readOne(result, cache, entityKey, version, lazy));
+        if (includes != null && t != null)
+            AssociationLoader.load(Collections.singletonList(t), includes, tid);
+        return t;
+    }
 
-        return select;
+    /**
+     * Execute the query asynchronously, the future is completed with the first model or null.
+     */
+    public CompletableFuture<T> findOneAsync() {
+        return findOneAsync(null);
     }
 
     @SuppressWarnings("unchecked")
-    private T deserialize(Result result, HashMap<Long, Model> models, ArrayList<T> list) {
-        Value[] row = result.currentRow();
-        if (row == null)
-            return null;
-
-        int len = row.length;
-        HashMap<String, Value> map = new HashMap<>(len);
-        for (int i = 0; i < len; i++) {
-            String key = result.getSchemaName(i) + "." + result.getTableName(i) + "." + result.getColumnName(i);
-            map.put(key, row[i]);
-        }
+    public CompletableFuture<T> findOneAsync(Long tid) {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return m.findOneAsync(tid);
+        }
+        checkDao("findOneAsync");
+        if (tableFilterStack != null && !tableFilterStack.isEmpty()) {
+            return findListAsync(tid).thenApply(list -> list.isEmpty() ? null : list.get(0));
+        }
+        ArrayList<Model<?>> includes = this.includes;
+        Long includeTid = includes == null ? null : getBoundTransactionId(tid);
+        Value entityKey = getEntityKey(tid);
+        EntityCache entityCache = null;
+        long entityCacheVersion = 0;
+        if (entityKey != null) {
+            entityCache = getEntityCache();
+            Model<?> cached = entityCache.get(entityKey);
+            if (cached != null) {
+                reset();
+                release();
+                return loadIncludesAsync((T) cached.copyEntity(), includes, includeTid);
+            }
+            entityCacheVersion = entityCache.getVersion();
+        }
+        EntityCache cache = entityCache;
+        long version = entityCacheVersion;
+        boolean lazy = isLazy();
+        BatchLoader<T> batchLoader = lazy ? null : getBatchLoader();
+        Value batchKey = batchLoader == null ? null : getPointLookupKey(tid);
+        if (batchKey != null) {
+            reset();
+            release();
+            return batchLoader.loadAsync(batchKey).thenCompose(t -> {
+                putEntity(cache, entityKey, version, t);
+                return loadIncludesAsync(t, includes, includeTid);
+            });
+        }
+        QueryTrace trace = QueryTrace.begin("findOneAsync", this);
+        String key = getQueryKey(tid, "findOne");
+        trace.shape("findOne", key);
+        QueryCache.CachedSelect cs = prepareQuery(tid, key, "findOne");
+        return executeQueryAsync(trace, key, cs, 1, result -> readOne(result, cache, entityKey, version, lazy))
+                .thenCompose(t -> loadIncludesAsync(t, includes, includeTid));
+    }
+
+    // 异步操作的后续步骤在其他线程中执行，那里没有绑定当前线程的事务，所以要在调用线程中先取出事务id
+    private static Long getBoundTransactionId(Long tid) {
+        if (tid != null)
+            return tid;
+        TransactionContext context = TransactionContext.current();
+        return context == null ? null : context.getTransactionId();
+    }
+
+    private static <T> CompletableFuture<T> loadIncludesAsync(T t, ArrayList<Model<?>> includes, Long tid) {
+        if (includes == null || t == null)
+            return CompletableFuture.completedFuture(t);
+        return AssociationLoader.loadAsync(Collections.singletonList(t), includes, tid).thenApply(v -> t);
+    }
+
+    private T readOne(Result result, EntityCache entityCache, Value entityKey, long entityCacheVersion,
+            boolean lazy) {
+        if (!result.next())
+            return null;
+        T t = new ModelGraphBuilder<>(this, RowMapping.create(result, this, lazy), null).add(result.currentRow());
+        putEntity(entityCache, entityKey, entityCacheVersion, t);
+        return t;
+    }
 
-        Model m = newInstance(modelTable, REGULAR_MODEL);
+    private static void putEntity(EntityCache entityCache, Value entityKey, long entityCacheVersion, Object t) {
+        if (entityCache != null && t != null) {
+            entityCache.put(entityKey, ((Model<?>) t).copyEntity(), entityCacheVersion);
+        }
+    }
 
-        if (m != null) {
-            m._rowid_.deserialize(map);
-            Model old = models.get(m._rowid_.get());
-            if (old == null) {
-                models.put(m._rowid_.get(), m);
-                for (ModelProperty p : m.modelProperties) {
-                    p.deserialize(map);
-                }
-                list.add((T) m);
-            } else {
-                m = old;
+    /**
+     * Return the primary key cache of this model class, or null if it is not enabled.
+     */
+    public EntityCache getEntityCache() {
+        return EntityCache.getEntityCache(getClass());
+    }
+
+    // 只有单字段主键上的等值查询才使用实体缓存，事务中的查询不使用
+    private Value getEntityKey(Long tid) {
+        if (getEntityCache() == null)
+            return null;
+        return getPointLookupKey(tid);
+    }
+
+    @SuppressWarnings("unchecked")
+    private BatchLoader<T> getBatchLoader() {
+        return (BatchLoader<T>) BatchLoader.peekBatchLoader(getClass());
+    }
+
+    // 自动提交模式下单字段主键上的等值查询，实体缓存和BatchLoader都只处理这种查询，
+    // 指定了字段列表、分组、排序、limit/offset或者关联查询时结果不一定是完整的那条记录，都不能处理
+    private Value getPointLookupKey(Long tid) {
+        if (tid != null || peekSession() != null)
+            return null;
+        if (whereExpressionBuilder == null || whereExpressionBuilder.getModel() != this)
+            return null;
+        if (selectExpressions != null || selectItems != null || groupExpressions != null || having != null)
+            return null;
+        if (limit >= 0 || offset > 0 || whereExpressionBuilder.getOrderList() != null)
+            return null;
+        if (tableFilterStack != null && !tableFilterStack.isEmpty())
+            return null;
+        return getPrimaryKey(whereExpressionBuilder.getKeyName(), whereExpressionBuilder.getKeyValue());
+    }
+
+    private Value getPrimaryKey(String name, Value value) {
+        if (name == null || value == null || value == ValueNull.INSTANCE)
+            return null;
+        Column column = getPrimaryKeyColumn();
+        if (column == null || !modelTable.getDatabase().equalsIdentifiers(name, column.getName()))
+            return null;
+        try {
+            return value.convertTo(column.getType());
+        } catch (DbException e) {
+            return null;
+        }
+    }
+
+    Column getPrimaryKeyColumn() {
+        Index primaryKey = modelTable.getTable().findPrimaryKey();
+        if (primaryKey == null || primaryKey.getColumns().length != 1)
+            return null;
+        return primaryKey.getColumns()[0];
+    }
+
+    // 从模型自身的字段中得到主键值，如果主键字段被修改过，changed为true时返回修改后的值，否则返回null
+    private Value getPrimaryKeyValue(boolean changed) {
+        Column column = getPrimaryKeyColumn();
+        if (column == null)
+            return null;
+        ModelProperty p = getModelProperty(column.getName());
+        if (p == null || isDirty(p.index) != changed)
+            return null;
+        return getPrimaryKey(p.getName(), getValue(p.index));
+    }
+
+    // 返回update和delete要修改的记录的主键值，无法确定是哪条记录或者修改了主键时返回null
+    private Value getEntityKeyForWrite() {
+        if (whereExpressionBuilder == null || whereExpressionBuilder.getModel() != this)
+            return null;
+        if (getPrimaryKeyValue(true) != null)
+            return null;
+        String name = whereExpressionBuilder.getKeyName();
+        // 没有指定where条件时会用ROWID当where条件，此时模型自身的主键字段就是要修改的记录的主键值
+        if (Column.ROWID.equals(name))
+            return getPrimaryKeyValue(false);
+        else
+            return getPrimaryKey(name, whereExpressionBuilder.getKeyValue());
+    }
+
+    // 写操作执行前后都要调用，执行后再调用一次是为了清除执行期间被其他查询放入缓存的旧值
+    private static void invalidateEntityCache(ServerSession session, EntityCache cache, Value key) {
+        if (cache == null)
+            return;
+        if (key == null) {
+            cache.clear();
+        } else {
+            cache.invalidate(key);
+        }
+        if (!session.isAutoCommit() && session.getTransaction() != null) {
+            long tid = session.getTransaction().getTransactionId();
+            Set<EntityCache> caches = pendingEntityCaches.get(tid);
+            if (caches == null) {
+                caches = ConcurrentHashMap.newKeySet();
+                Set<EntityCache> old = pendingEntityCaches.putIfAbsent(tid, caches);
+                if (old != null)
+                    caches = old;
             }
+            caches.add(cache);
         }
-        deserializeAssociateInstances(map, m.newAssociateInstances());
-        return (T) m;
     }
 
+    static void clearPendingEntityCaches(long tid) {
+        Set<EntityCache> caches = pendingEntityCaches.remove(tid);
+        if (caches != null) {
+            for (EntityCache cache : caches)
+                cache.clear();
+        }
+    }
+
+    // 新记录的主键值可能被缓存过，比如删除后又插入了相同主键的记录
+    private void invalidateEntityCacheForInsert() {
+        EntityCache cache = EntityCache.peekEntityCache(getClass());
+        if (cache == null)
+            return;
+        Value key = getPrimaryKeyValue(true);
+        if (key == null)
+            cache.clear();
+        else
+            cache.invalidate(key);
+    }
+
+    // 实体缓存中的模型不能直接交给调用者，调用者修改字段时会破坏缓存
     @SuppressWarnings("unchecked")
-    private void deserializeAssociateInstances(HashMap<String, Value> map, List<Model<?>> associateModels) {
-        if (associateModels != null) {
-            for (Model associateModel : associateModels) {
-                for (ModelProperty p : associateModel.modelProperties) {
-                    p.deserialize(map);
+    Model<T> copyEntity() {
+        decodeLazyValues();
+        Model<T> m = (Model<T>) newInstance(modelTable, REGULAR_MODEL);
+        m._rowid_.set(_rowid_.get());
+        if (primitiveValues != null)
+            m.primitiveValues = primitiveValues.clone();
+        if (objectValues != null)
+            m.objectValues = objectValues.clone();
+        if (nullBits != null)
+            m.nullBits = nullBits.clone();
+        return m;
+    }
+
+    /**
+     * Return the cache of prepared queries shared by all instances of this model class.
+     */
+    public QueryCache getQueryCache() {
+        return QueryCache.getQueryCache(getClass());
+    }
+
+    // 事务中的查询必须在事务所属的session中执行，所以只有自动提交模式下的查询才使用缓存的查询计划
+    private String getQueryKey(Long tid, String operation) {
+        if (tid != null || !QueryCache.isEnabled() || peekSession() != null)
+            return null;
+        if (hasInList(whereExpressionBuilder) || hasInList(having))
+            return null;
+        return getStatementSkeleton(new StringBuilder(operation)).toString();
+    }
+
+    // 查询形状用于统计查询指标，可以缓存的语句按它的key只生成一次形状，
+    // 不能缓存的语句每次都要准备，生成形状的开销相比之下可以忽略
+    String getQueryShape(String operation, String key) {
+        if (key == null)
+            return buildQueryShape(operation);
+        String shape = QueryMetrics.getShape(getClass(), key);
+        if (shape == null) {
+            shape = buildQueryShape(operation);
+            QueryMetrics.putShape(getClass(), key, shape);
+        }
+        return shape;
+    }
+
+    // 字面值都已经绑定为参数，所以同一个调用点总是生成相同的形状。
+    // 必须在准备语句之前生成，准备时可能会给查询加上默认的select字段
+    private String buildQueryShape(String operation) {
+        StringBuilder shape = new StringBuilder(operation);
+        boolean insert = operation.startsWith("insert") || operation.startsWith("upsert");
+        if (insert || operation.startsWith("update")) {
+            shape.append(insert ? " (" : " SET (");
+            int[] indexes = getDirtyIndexes();
+            for (int i = 0; i < indexes.length; i++) {
+                if (i > 0)
+                    shape.append(", ");
+                shape.append(modelProperties[indexes[i]].getName());
+            }
+            shape.append(')');
+            if (insert)
+                return shape.toString();
+        }
+        String skeleton = getStatementSkeleton(shape).toString();
+        // IN列表的值是常量，不同的值也算同一个形状
+        if (hasInList(whereExpressionBuilder) || hasInList(having))
+            skeleton = IN_LIST_PATTERN.matcher(skeleton).replaceAll("IN(...)");
+        return skeleton;
+    }
+
+    private static boolean hasInList(ExpressionBuilder<?> e) {
+        return e != null && e.hasInList();
+    }
+
+    private StringBuilder getStatementSkeleton(StringBuilder key) {
+        if (selectExpressions != null) {
+            key.append(" SELECT");
+            for (Expression e : selectExpressions)
+                key.append(' ').append(e.getSQL());
+        }
+        if (tableFilterStack != null && !tableFilterStack.isEmpty()) {
+            TableFilter tableFilter = tableFilterStack.peek();
+            while (tableFilter != null) {
+                key.append(" FROM ").append(tableFilter.getTable().getSQL()).append(' ')
+                        .append(tableFilter.getTableAlias());
+                if (tableFilter.getJoinCondition() != null)
+                    key.append(" ON ").append(tableFilter.getJoinCondition().getSQL());
+                tableFilter = tableFilter.getJoin();
+            }
+        }
+        // 条件用构建时生成的结构指纹，不用每次都渲染整个条件树的SQL
+        if (whereExpressionBuilder != null && whereExpressionBuilder.getExpression() != null) {
+            key.append(" WHERE ");
+            whereExpressionBuilder.appendFingerprint(key);
+        }
+        if (groupExpressions != null) {
+            key.append(" GROUP BY");
+            for (Expression e : groupExpressions)
+                key.append(' ').append(e.getSQL());
+            if (having != null && having.getExpression() != null) {
+                key.append(" HAVING ");
+                having.appendFingerprint(key);
+            }
+        }
+        if (whereExpressionBuilder != null && whereExpressionBuilder.getOrderList() != null) {
+            key.append(" ORDER BY");
+            for (SelectOrderBy o : whereExpressionBuilder.getOrderList())
+                key.append(' ').append(o.getSQL());
+        }
+        if (limit >= 0)
+            key.append(" LIMIT ?");
+        if (offset > 0)
+            key.append(" OFFSET ?");
+        return key;
+    }
+
+    private QueryCache.CachedSelect pollCachedSelect(String key) {
+        if (key == null)
+            return null;
+        return getQueryCache().poll(key, parameters);
+    }
+
+    private QueryCache.CachedSelect newCachedSelect(String key, Select select) {
+        // 不能缓存的Select也用CachedSelect包装，但它的session还是要归还给session池
+        if (key == null)
+            return new QueryCache.CachedSelect(null, null, select, parameters);
+        // 缓存的Select独占它的session，不再归还给session池，Select被淘汰时再关闭
+        return new QueryCache.CachedSelect(modelTable.getSessionPool(), detachSession(), select, parameters);
+    }
+
+    // 查询缓存中没有可用的Select时才创建新的
+    private QueryCache.CachedSelect prepareQuery(Long tid, String key, String operation) {
+        // limit和offset放在其他参数之后，不同的值也能复用同一个查询计划，findCount不需要它们
+        Parameter limitParameter = null;
+        Parameter offsetParameter = null;
+        if (!operation.equals("findCount")) {
+            if (limit >= 0 && !operation.equals("findOne"))
+                limitParameter = createParameter(ValueInt.get(limit));
+            if (offset > 0)
+                offsetParameter = createParameter(ValueInt.get(offset));
+        }
+        QueryCache.CachedSelect cs = pollCachedSelect(key);
+        if (cs != null)
+            return cs;
+        try {
+            return newCachedSelect(key, prepareSelect(tid, operation, limitParameter, offsetParameter));
+        } catch (RuntimeException e) {
+            // 准备失败时session也要归还
+            release();
+            throw e;
+        }
+    }
+
+    private Select prepareSelect(Long tid, String operation, Parameter limitParameter, Parameter offsetParameter) {
+        Select select = createSelect(tid);
+        if (limitParameter != null)
+            select.setLimit(limitParameter);
+        if (offsetParameter != null)
+            select.setOffset(offsetParameter);
+        switch (operation) {
+        case "findOne":
+            select.setLimit(ValueExpression.get(ValueInt.get(1)));
+            break;
+        case "findCount":
+            select.setGroupQuery();
+            getSelectExpressions().clear();
+            Aggregate a = new Aggregate(Aggregate.COUNT_ALL, null, select, false);
+            getSelectExpressions().add(a);
+            select.setExpressions(getSelectExpressions());
+            break;
+        case "findIterator":
+            // 关联查询时同一条主表记录对应的多行需要连在一起，这样每次只需要保留当前这条主表记录
+            boolean joined = tableFilterStack != null && !tableFilterStack.isEmpty();
+            if (joined && (whereExpressionBuilder == null || whereExpressionBuilder.getOrderList() == null)) {
+                ArrayList<SelectOrderBy> orderList = New.arrayList();
+                SelectOrderBy order = new SelectOrderBy();
+                order.expression = getExpressionColumn(tableFilterStack.peek(), Column.ROWID);
+                orderList.add(order);
+                select.setOrder(orderList);
+            }
+            break;
+        }
+        select.init();
+        select.prepare();
+        return select;
+    }
+
+    private void closeQuery(String key, QueryCache.CachedSelect cs) {
+        if (key != null)
+            getQueryCache().offer(key, cs);
+        release();
+    }
+
+    // 执行失败的Select不再放回查询缓存
+    private void discardQuery(String key, QueryCache.CachedSelect cs) {
+        if (key != null)
+            cs.close();
+        release();
+    }
+
+    // 同步查询的公共部分，执行或读取结果失败时丢弃Select并归还session
+    private <R> R executeQuery(Long tid, String operation, int maxRows, Function<Result, R> reader) {
+        QueryTrace trace = QueryTrace.begin(operation, this);
+        String key = getQueryKey(tid, operation);
+        trace.shape(operation, key);
+        QueryCache.CachedSelect cs = prepareQuery(tid, key, operation);
+        R r;
+        try {
+            trace.prepared();
+            Result result = cs.select.executeQuery(maxRows);
+            trace.executed();
+            reset();
+            r = reader.apply(result);
+            trace.end(cs.select, cs.parameters, result.getRowCount());
+        } catch (RuntimeException e) {
+            discardQuery(key, cs);
+            throw e;
+        }
+        closeQuery(key, cs);
+        return r;
+    }
+
+    /**
+     * Execute the prepared query with the asynchronous API of the session,
+     * the rows are deserialized by the reader in the thread that completes the query.
+     */
+    private <R> CompletableFuture<R> executeQueryAsync(QueryTrace trace, String key, QueryCache.CachedSelect cs,
+            int maxRows, Function<Result, R> reader) {
+        CompletableFuture<R> future = new CompletableFuture<>();
+        trace.prepared();
+        // 回调可能在其他线程中执行并回收当前dao，所以必须在执行前reset
+        reset();
+        cs.select.executeQueryAsync(maxRows, false, ar -> {
+            if (ar.isSucceeded()) {
+                trace.executed();
+                R r;
+                try {
+                    Result result = ar.getResult();
+                    r = reader.apply(result);
+                    trace.end(cs.select, cs.parameters, result.getRowCount());
+                } catch (Throwable t) {
+                    discardQuery(key, cs);
+                    future.completeExceptionally(t);
+                    return;
                 }
-                associateModel._rowid_.deserialize(map);
-                deserializeAssociateInstances(map, associateModel.newAssociateInstances());
+                closeQuery(key, cs);
+                future.complete(r);
+            } else {
+                discardQuery(key, cs);
+                future.completeExceptionally(ar.getCause());
             }
+        });
+        return future;
+    }
+
+    // 异步写操作执行完后，自动提交模式下再异步提交事务，提交完成后才通知调用者
+    private static <R> void commitAsync(ServerSession session, CompletableFuture<R> future, Supplier<R> afterCommit) {
+        if (session.isAutoCommit()) {
+            session.asyncCommit(() -> complete(future, afterCommit));
+        } else {
+            complete(future, afterCommit);
+        }
+    }
+
+    private static <R> void complete(CompletableFuture<R> future, Supplier<R> supplier) {
+        try {
+            future.complete(supplier.get());
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
         }
     }
 
+    private Select createSelect(Long tid) {
+        ServerSession session = getSession(tid);
+        Select select = new Select(session);
+        // 分组查询和聚合查询不能取rowid
+        boolean aggregate = hasAggregates();
+        if (aggregate) {
+            selectExpressions = createSelectExpressions(select);
+            select.setGroupQuery();
+        }
+        boolean withRowId = !aggregate && groupExpressions == null;
+        TableFilter tableFilter;
+        if (tableFilterStack != null && !tableFilterStack.isEmpty()) {
+            tableFilter = tableFilterStack.peek();
+            select.addTableFilter(tableFilter, true);
+            boolean selectExpressionsIsNull = false;
+            if (selectExpressions == null) {
+                selectExpressionsIsNull = true;
+                getSelectExpressions().add(new Wildcard(tableFilter.getSchemaName(), tableFilter.getTableAlias()));
+            }
+            if (withRowId)
+                selectExpressions.add(getExpressionColumn(tableFilter, Column.ROWID)); // 总是获取rowid
+            while (tableFilter.getJoin() != null) {
+                select.addTableFilter(tableFilter.getJoin(), false);
+                tableFilter = tableFilter.getJoin();
+                if (selectExpressionsIsNull)
+                    selectExpressions.add(new Wildcard(tableFilter.getSchemaName(), tableFilter.getTableAlias()));
+                if (withRowId)
+                    selectExpressions.add(getExpressionColumn(tableFilter, Column.ROWID)); // 总是获取rowid
+            }
+        } else {
+            tableFilter = new TableFilter(session, modelTable.getTable(), null, true, null);
+            select.addTableFilter(tableFilter, true);
+            if (selectExpressions == null) {
+                getSelectExpressions().add(new Wildcard(null, null));
+            }
+            if (withRowId)
+                selectExpressions.add(getExpressionColumn(Column.ROWID)); // 总是获取rowid
+        }
+        select.setExpressions(selectExpressions);
+        if (whereExpressionBuilder != null)
+            select.addCondition(whereExpressionBuilder.getExpression());
+        if (groupExpressions != null) {
+            select.setGroupQuery();
+            select.setGroupBy(groupExpressions);
+            select.setHaving(having.getExpression());
+        }
+        if (whereExpressionBuilder != null)
+            select.setOrder(whereExpressionBuilder.getOrderList());
+
+        return select;
+    }
+
     protected Model newInstance(ModelTable t, short modelType) {
         return null;
     }
@@ -571,25 +1647,302 @@ public abstract class Model<T> {
      * Execute the query returning the list of objects.
      */
     public List<T> findList() {
-        return findList(null);
+        return findList((Long) null);
+    }
+
+    // 给BatchLoader用的，一个异步的IN查询找出一批主键对应的模型，不会阻塞发起查询的线程
+    CompletableFuture<List<T>> findListByKeysAsync(String name, List<Value> keys) {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return m.findListByKeysAsync(name, keys);
+        }
+        peekExprBuilder().in(name, keys);
+        return findListAsync();
     }
 
     public List<T> findList(Long tid) {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return reclaim(m, m.findList(tid));
+        }
         checkDao("findList");
-        Select select = createSelect(tid);
-        select.init();
-        select.prepare();
-        logger.info("execute sql: " + select.getPlanSQL());
-        Result result = select.executeQuery(-1);
-        reset();
+        ArrayList<Model<?>> includes = this.includes;
+        boolean lazy = isLazy();
+        List<T> list = executeQuery(tid, "findList", -1, result -> readList(result, lazy));
+        if (includes != null)
+            AssociationLoader.load(list, includes, tid);
+        return list;
+    }
+
+    /**
+     * Execute the query asynchronously, the future is completed with the list of models.
+     */
+    public CompletableFuture<List<T>> findListAsync() {
+        return findListAsync(null);
+    }
+
+    public CompletableFuture<List<T>> findListAsync(Long tid) {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return m.findListAsync(tid);
+        }
+        checkDao("findListAsync");
+        ArrayList<Model<?>> includes = this.includes;
+        Long includeTid = includes == null ? null : getBoundTransactionId(tid);
+        QueryTrace trace = QueryTrace.begin("findListAsync", this);
+        String key = getQueryKey(tid, "findList");
+        trace.shape("findList", key);
+        QueryCache.CachedSelect cs = prepareQuery(tid, key, "findList");
+        boolean lazy = isLazy();
+        CompletableFuture<List<T>> future = executeQueryAsync(trace, key, cs, -1, result -> readList(result, lazy));
+        if (includes == null)
+            return future;
+        return future.thenCompose(list -> AssociationLoader.loadAsync(list, includes, includeTid).thenApply(v -> list));
+    }
+
+    private List<T> readList(Result result, boolean lazy) {
         ArrayList<T> list = new ArrayList<>(result.getRowCount());
-        HashMap<Long, Model> models = new HashMap<>(result.getRowCount());
+        ModelGraphBuilder<T> builder = null;
         while (result.next()) {
-            deserialize(result, models, list);
+            if (builder == null)
+                builder = new ModelGraphBuilder<>(this, RowMapping.create(result, this, lazy), list);
+            builder.add(result.currentRow());
         }
         return list;
     }
 
+    /**
+     * Set the number of rows that the underlying result fetches each time, used by findIterator/findStream/forEach.
+     */
+    public T fetchSize(int fetchSize) {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return m.fetchSize(fetchSize);
+        }
+        this.fetchSize = fetchSize;
+        return root;
+    }
+
+    /**
+     * Execute the query returning an iterator that deserializes the rows lazily.
+     * <p>
+     * The iterator must be closed if it is not iterated to the end.
+     * </p>
+     */
+    public ModelIterator<T> findIterator() {
+        return findIterator(null);
+    }
+
+    public ModelIterator<T> findIterator(Long tid) {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return m.findIterator(tid);
+        }
+        checkDao("findIterator");
+        boolean joined = tableFilterStack != null && !tableFilterStack.isEmpty();
+        boolean lazy = isLazy();
+        final QueryTrace trace = QueryTrace.begin("findIterator", this);
+        final String key = getQueryKey(tid, "findIterator");
+        trace.shape("findIterator", key);
+        final QueryCache.CachedSelect cs = prepareQuery(tid, key, "findIterator");
+        Select select = cs.select;
+        Result result;
+        try {
+            if (fetchSize > 0)
+                select.setFetchSize(fetchSize);
+            trace.prepared();
+            result = select.executeQuery(-1);
+            trace.executed();
+            reset();
+        } catch (RuntimeException e) {
+            discardQuery(key, cs);
+            throw e;
+        }
+        // 行是在迭代时才读取的，所以反序列化的时间包含了调用者处理每条记录的时间
+        return new ModelIterator<>(this, result, joined, lazy, () -> {
+            trace.end(cs.select, cs.parameters, -1);
+            closeQuery(key, cs);
+        });
+    }
+
+    /**
+     * Execute the query returning a stream that deserializes the rows lazily.
+     * <p>
+     * The stream should be closed if it is not consumed to the end.
+     * </p>
+     */
+    public Stream<T> findStream() {
+        return findStream(null);
+    }
+
+    public Stream<T> findStream(Long tid) {
+        ModelIterator<T> iterator = findIterator(tid);
+        return StreamSupport
+                .stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(iterator::close);
+    }
+
+    /**
+     * Execute the query and pass each model to the action, only the current model is kept in memory.
+     */
+    public void forEach(Consumer<T> action) {
+        forEach(null, action);
+    }
+
+    public void forEach(Long tid, Consumer<T> action) {
+        try (ModelIterator<T> iterator = findIterator(tid)) {
+            while (iterator.hasNext()) {
+                action.accept(iterator.next());
+            }
+        }
+    }
+
+    /**
+     * Return the values of the property for all the rows, without creating the models. Null values are 0.
+     */
+    public long[] findValues(PLong<?> p) {
+        return findValues(p, null);
+    }
+
+    public long[] findValues(PLong<?> p, Long tid) {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return reclaim(m, m.findValues(p, tid));
+        }
+        return findProjection(tid, "findValues", new ModelProperty<?>[] { p }, result -> {
+            long[] values = new long[Math.max(result.getRowCount(), 16)];
+            int size = 0;
+            while (result.next()) {
+                if (size == values.length)
+                    values = Arrays.copyOf(values, size * 2);
+                Value v = result.currentRow()[0];
+                values[size++] = v == ValueNull.INSTANCE ? 0 : v.getLong();
+            }
+            return Arrays.copyOf(values, size);
+        });
+    }
+
+    public int[] findValues(PInteger<?> p) {
+        return findValues(p, null);
+    }
+
+    public int[] findValues(PInteger<?> p, Long tid) {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return reclaim(m, m.findValues(p, tid));
+        }
+        return findProjection(tid, "findValues", new ModelProperty<?>[] { p }, result -> {
+            int[] values = new int[Math.max(result.getRowCount(), 16)];
+            int size = 0;
+            while (result.next()) {
+                if (size == values.length)
+                    values = Arrays.copyOf(values, size * 2);
+                Value v = result.currentRow()[0];
+                values[size++] = v == ValueNull.INSTANCE ? 0 : v.getInt();
+            }
+            return Arrays.copyOf(values, size);
+        });
+    }
+
+    public double[] findValues(PDouble<?> p) {
+        return findValues(p, null);
+    }
+
+    public double[] findValues(PDouble<?> p, Long tid) {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return reclaim(m, m.findValues(p, tid));
+        }
+        return findProjection(tid, "findValues", new ModelProperty<?>[] { p }, result -> {
+            double[] values = new double[Math.max(result.getRowCount(), 16)];
+            int size = 0;
+            while (result.next()) {
+                if (size == values.length)
+                    values = Arrays.copyOf(values, size * 2);
+                Value v = result.currentRow()[0];
+                values[size++] = v == ValueNull.INSTANCE ? 0 : v.getDouble();
+            }
+            return Arrays.copyOf(values, size);
+        });
+    }
+
+    /**
+     * Return the values of the properties column by column, without creating the models.
+     */
+    public ColumnarResult findColumns(ModelProperty<?>... properties) {
+        return findColumns(null, properties);
+    }
+
+    public ColumnarResult findColumns(Long tid, ModelProperty<?>... properties) {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return reclaim(m, m.findColumns(tid, properties));
+        }
+        String[] names = new String[properties.length];
+        for (int i = 0; i < names.length; i++)
+            names[i] = properties[i].getName();
+        return findProjection(tid, "findColumns", properties, result -> ColumnarResult.read(result, names));
+    }
+
+    /**
+     * Map each row of the select(...) projection to an instance of the given class instead of a model.
+     * <p>
+     * The class needs a constructor with one parameter per selected property in the same order,
+     * or a no-arg constructor and fields named after the properties.
+     * </p>
+     */
+    public <R> List<R> findList(Class<R> recordClass) {
+        return findList(recordClass, null);
+    }
+
+    public <R> List<R> findList(Class<R> recordClass, Long tid) {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return reclaim(m, m.findList(recordClass, tid));
+        }
+        int columnCount = selectItems == null ? -1 : selectItems.length;
+        return findProjection(tid, "findRecords", null, result -> RecordMapper.read(result, recordClass, columnCount));
+    }
+
+    /**
+     * Execute the select(...) projection and return one tuple per row,
+     * the aggregates are computed by the database, grouped by the groupBy(...) properties if any.
+     */
+    public List<Tuple> findTuples() {
+        return findTuples(null);
+    }
+
+    public List<Tuple> findTuples(Long tid) {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return reclaim(m, m.findTuples(tid));
+        }
+        SelectItem[] items = selectItems;
+        if (items == null)
+            throw new IllegalStateException("The findTuples operation needs a select(...) projection");
+        return findProjection(tid, "findTuples", null, result -> {
+            ArrayList<Tuple> list = new ArrayList<>(Math.max(result.getRowCount(), 0));
+            while (result.next())
+                list.add(new Tuple(items, result.currentRow()));
+            return list;
+        });
+    }
+
+    // 投影查询直接读取结果中的值，不创建模型，properties为null时使用select(...)指定的字段
+    private <R> R findProjection(Long tid, String operation, ModelProperty<?>[] properties,
+            Function<Result, R> reader) {
+        checkNotJoined(operation);
+        if (properties != null) {
+            selectItems = properties;
+            selectExpressions = createSelectExpressions(null);
+        }
+        return executeQuery(tid, operation, -1, reader);
+    }
+
+    RowMapping createRowMapping(Result result, boolean lazy) {
+        return RowMapping.create(result, this, lazy);
+    }
+
     @SuppressWarnings("unchecked")
     public <M> M m(Model<M> m) {
         Model<T> m2 = maybeCopy();
@@ -607,6 +1960,8 @@ public abstract class Model<T> {
         }
         peekExprBuilder().setModel(m);
         m.pushExprBuilder((ExpressionBuilder<M>) peekExprBuilder());
+        // 切换到关联表后创建的参数也要放到同一个查询中
+        m.parameters = getParameters();
         return m.root;
     }
 
@@ -618,18 +1973,32 @@ public abstract class Model<T> {
     }
 
     public int findCount(Long tid) {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return reclaim(m, m.findCount(tid));
+        }
         checkDao("findCount");
-        Select select = createSelect(tid);
-        select.setGroupQuery();
-        getSelectExpressions().clear();
-        Aggregate a = new Aggregate(Aggregate.COUNT_ALL, null, select, false);
-        getSelectExpressions().add(a);
-        select.setExpressions(getSelectExpressions());
-        select.init();
-        select.prepare();
-        logger.info("execute sql: " + select.getPlanSQL());
-        Result result = select.executeQuery(-1);
-        reset();
+        return executeQuery(tid, "findCount", -1, Model::readCount);
+    }
+
+    public CompletableFuture<Integer> findCountAsync() {
+        return findCountAsync(null);
+    }
+
+    public CompletableFuture<Integer> findCountAsync(Long tid) {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return m.findCountAsync(tid);
+        }
+        checkDao("findCountAsync");
+        QueryTrace trace = QueryTrace.begin("findCountAsync", this);
+        String key = getQueryKey(tid, "findCount");
+        trace.shape("findCount", key);
+        QueryCache.CachedSelect cs = prepareQuery(tid, key, "findCount");
+        return executeQueryAsync(trace, key, cs, -1, Model::readCount);
+    }
+
+    private static int readCount(Result result) {
         result.next();
         return result.currentRow()[0].getInt();
     }
@@ -637,64 +2006,542 @@ public abstract class Model<T> {
     private ServerSession getSession(Long tid) {
         boolean autoCommit = false;
         ServerSession session;
+        TransactionContext context;
         if (tid != null) {
-            session = currentSessions.get(tid);
+            context = TransactionContext.get(tid);
+            // 事务已经结束时不能悄悄地改用自动提交模式
+            if (context == null)
+                throw new IllegalStateException("Transaction " + tid + " is not active");
         } else {
-            session = peekSession();
+            context = TransactionContext.current();
         }
-        if (session == null) {
-            session = modelTable.getSession();
-            autoCommit = true;
-        } else {
+        if (context != null) {
+            useTransaction(context);
+            session = context.getSession();
             autoCommit = false;
+        } else {
+            session = borrowSession();
+            autoCommit = true;
         }
 
         session.setAutoCommit(autoCommit);
         return session;
     }
 
+    // 操作使用事务的session期间一直持有事务，直到release()，事务刚被回收时同样不能改用自动提交模式
+    private void useTransaction(TransactionContext context) {
+        if (transactionContext == context)
+            return;
+        if (!context.acquire())
+            throw new IllegalStateException("Transaction " + context.getTransactionId() + " is not active");
+        if (transactionContext != null)
+            transactionContext.release();
+        transactionContext = context;
+    }
+
     public long insert() {
         return insert(null);
     }
 
     public long insert(Long tid) {
         // TODO 是否允许通过 XXX.dao来insert记录?
-        if (isDao()) {
-            String name = this.getClass().getSimpleName();
-            throw new UnsupportedOperationException("The insert operation is not allowed for " + name
-                    + ".dao,  please use new " + name + "().insert() instead.");
+        checkNotDao("insert");
+        QueryTrace trace = QueryTrace.begin("insert", this);
+        DmlCache.CachedStatement cs = prepareWrite(tid, false, true);
+        trace.shape("insert", cs.key);
+        ServerSession session = cs.session;
+        boolean autoCommit = session.isAutoCommit();
+        // 有关联模型时整个模型图在同一个事务中插入，只提交一次
+        boolean graph = autoCommit && modelList != null;
+        if (graph)
+            session.setAutoCommit(false);
+        long rowId;
+        try {
+            trace.prepared();
+            int count = cs.statement.executeUpdate();
+            rowId = session.getLastRowKey();
+            _rowid_.set(rowId);
+            if (modelList != null)
+                insertChildren(session, rowId);
+            if (autoCommit) {
+                GroupCommit.commit(session);
+            }
+            if (graph)
+                session.setAutoCommit(true);
+            trace.executed();
+            trace.end(cs.statement, cs.parameters, count);
+        } catch (RuntimeException e) {
+            if (graph) {
+                session.rollback();
+                session.setAutoCommit(true);
+            }
+            discardStatement(cs);
+            release();
+            throw e;
+        }
+        invalidateEntityCacheForInsert();
+        reset();
+        closeStatement(cs);
+        release();
+        return rowId;
+    }
+
+    // 在父模型的session中插入子模型，同一个类的子模型共用一个预编译的Insert，由调用者提交
+    @SuppressWarnings({ "unchecked" })
+    private void insertChildren(ServerSession session, long rowId) {
+        LinkedHashMap<Class<?>, ArrayList<Model<?>>> groups = new LinkedHashMap<>();
+        for (Model<?> m : modelList) {
+            ArrayList<Model<?>> group = groups.get(m.getClass());
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(m.getClass(), group);
+            }
+            group.add(m);
+        }
+        for (ArrayList<Model<?>> children : groups.values()) {
+            fillForeignKeys(children, rowId);
+            Model first = children.get(0);
+            ArrayList<Model<?>> array = new ArrayList<>(children.size());
+            long[] rowIds = first.writeAll(session, children, array, 0, false);
+            for (int i = 0, size = array.size(); i < size; i++) {
+                Model<?> child = array.get(i);
+                child._rowid_.set(rowIds[i]);
+                if (child.modelList != null)
+                    child.insertChildren(session, rowIds[i]);
+                child.invalidateEntityCacheForInsert();
+                child.reset();
+            }
+        }
+    }
+
+    // 子模型的外键在addXxx时就从父模型复制过了，但父模型的主键可能是之后才设置的或者是插入时生成的
+    private void fillForeignKeys(ArrayList<Model<?>> children, long rowId) {
+        Table table = children.get(0).modelTable.getTable();
+        ConstraintReferential fk = AssociationLoader.peekForeignKey(table, modelTable.getTable());
+        if (fk == null || fk.getColumns().length != 1)
+            return;
+        Column refColumn = fk.getRefColumns()[0].column;
+        Value v = getPropertyValue(refColumn.getName());
+        if (v == ValueNull.INSTANCE) {
+            // 单字段的整数主键就是rowid，所以不用再查询就能得到生成的主键值
+            int type = refColumn.getType();
+            if (refColumn != getPrimaryKeyColumn()
+                    || type != Value.INT && type != Value.LONG && type != Value.SHORT && type != Value.BYTE)
+                return;
+            v = ValueLong.get(rowId);
         }
+        String name = fk.getColumns()[0].column.getName();
+        for (Model<?> child : children)
+            child.setValue(name, v);
+    }
+
+    /**
+     * Insert the model asynchronously, the future is completed with the rowid after the associate models are inserted.
+     * Like {@link #insert()}, a model graph is inserted in one transaction.
+     */
+    public CompletableFuture<Long> insertAsync() {
+        return insertAsync(null);
+    }
+
+    public CompletableFuture<Long> insertAsync(Long tid) {
+        checkNotDao("insert");
+        QueryTrace trace = QueryTrace.begin("insertAsync", this);
+        // 异步执行的语句不使用缓存
+        DmlCache.CachedStatement cs = prepareWrite(tid, false, false);
+        trace.shape("insertAsync", cs.key);
+        ServerSession session = cs.session;
+        StatementBase insert = cs.statement;
+        // 有关联模型时整个模型图在同一个事务中插入，子模型的insert在父模型的insert完成后依次异步执行，最后只提交一次
+        boolean graph = session.isAutoCommit() && modelList != null;
+        if (graph)
+            session.setAutoCommit(false);
+        trace.prepared();
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        executeAsync(insert).thenCompose(count -> {
+            long rowId = session.getLastRowKey();
+            _rowid_.set(rowId);
+            if (modelList == null)
+                return CompletableFuture.completedFuture(count);
+            return insertChildrenAsync(session, rowId).thenApply(v -> count);
+        }).whenComplete((count, t) -> {
+            if (t != null) {
+                Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                try {
+                    if (graph) {
+                        session.rollback();
+                        session.setAutoCommit(true);
+                    }
+                } catch (Throwable e) {
+                    cause.addSuppressed(e);
+                } finally {
+                    future.completeExceptionally(cause);
+                }
+                return;
+            }
+            Supplier<Long> afterCommit = () -> {
+                trace.executed();
+                trace.end(insert, cs.parameters, count);
+                invalidateEntityCacheForInsert();
+                return _rowid_.get();
+            };
+            if (graph) {
+                session.asyncCommit(() -> {
+                    session.setAutoCommit(true);
+                    complete(future, afterCommit);
+                });
+            } else {
+                commitAsync(session, future, afterCommit);
+            }
+        });
+        return future.whenComplete((rowId, t) -> {
+            reset();
+            release();
+        });
+    }
+
+    // insertChildren的异步版本，由调用者提交
+    private CompletableFuture<Void> insertChildrenAsync(ServerSession session, long rowId) {
+        LinkedHashMap<Class<?>, ArrayList<Model<?>>> groups = new LinkedHashMap<>();
+        for (Model<?> m : modelList) {
+            ArrayList<Model<?>> group = groups.get(m.getClass());
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(m.getClass(), group);
+            }
+            group.add(m);
+        }
+        CompletableFuture<Void> future = CompletableFuture.completedFuture(null);
+        for (ArrayList<Model<?>> children : groups.values()) {
+            fillForeignKeys(children, rowId);
+            // 跟writeAll一样按字段集合分组
+            LinkedHashMap<String, ArrayList<Model<?>>> columnGroups = new LinkedHashMap<>();
+            for (Model<?> child : children) {
+                child.checkNotDao("insert");
+                String key = Arrays.toString(child.getDirtyIndexes());
+                ArrayList<Model<?>> group = columnGroups.get(key);
+                if (group == null) {
+                    group = new ArrayList<>();
+                    columnGroups.put(key, group);
+                }
+                group.add(child);
+            }
+            for (ArrayList<Model<?>> group : columnGroups.values())
+                future = future.thenCompose(v -> insertGroupAsync(session, group));
+        }
+        return future;
+    }
+
+    // 同一组的模型共用一个Insert，上一条执行完后才绑定下一条的值，每条插入后再插入它自己的子模型
+    private static CompletableFuture<Void> insertGroupAsync(ServerSession session, ArrayList<Model<?>> group) {
+        Model<?> first = group.get(0);
+        int[] indexes = first.getDirtyIndexes();
+        Parameter[] parameters = new Parameter[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            parameters[i] = new Parameter(i);
+        }
+        StatementBase insert = first.createWriteStatement(session, indexes, parameters, false);
+        CompletableFuture<Void> future = CompletableFuture.completedFuture(null);
+        for (Model<?> m : group) {
+            future = future.thenCompose(v -> {
+                for (int i = 0; i < indexes.length; i++) {
+                    parameters[i].setValue(m.getValue(indexes[i]));
+                }
+                return executeAsync(insert);
+            }).thenCompose(count -> {
+                long rowId = session.getLastRowKey();
+                m._rowid_.set(rowId);
+                if (m.modelList == null)
+                    return CompletableFuture.completedFuture(null);
+                return m.insertChildrenAsync(session, rowId);
+            }).thenRun(() -> {
+                m.invalidateEntityCacheForInsert();
+                m.reset();
+            });
+        }
+        return future;
+    }
+
+    private static CompletableFuture<Integer> executeAsync(StatementBase statement) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        statement.executeUpdateAsync(ar -> {
+            if (ar.isSucceeded())
+                future.complete(ar.getResult());
+            else
+                future.completeExceptionally(ar.getCause());
+        });
+        return future;
+    }
+
+    // 字段值都绑定为参数，自动提交模式下相同字段组合的insert或upsert复用同一个缓存的语句
+    private DmlCache.CachedStatement prepareWrite(Long tid, boolean upsert, boolean cacheable) {
+        if (assignments != null)
+            throw new UnsupportedOperationException("add() can only be used by the update operation");
+        int[] indexes = getDirtyIndexes();
+        Expression[] expressions = new Expression[indexes.length];
+        for (int i = 0; i < indexes.length; i++)
+            expressions[i] = createParameter(getValue(indexes[i]));
+        String key = null;
+        if (cacheable && useDmlCache(tid))
+            key = (upsert ? "upsert " : "insert ") + Arrays.toString(indexes);
+        DmlCache.CachedStatement cs = pollCachedStatement(key);
+        if (cs != null)
+            return cs;
         ServerSession session = getSession(tid);
+        try {
+            return newCachedStatement(key, session, createWriteStatement(session, indexes, expressions, upsert));
+        } catch (RuntimeException e) {
+            // 准备失败时session也要归还
+            release();
+            throw e;
+        }
+    }
+
+    // insert和upsert的公共部分
+    private StatementBase createWriteStatement(ServerSession session, int[] indexes, Expression[] expressions,
+            boolean upsert) {
+        if (assignments != null)
+            throw new UnsupportedOperationException("add() can only be used by the update operation");
         Table dbTable = modelTable.getTable();
-        Insert insert = new Insert(session);
-        int size = nvPairs.size();
+        int size = indexes.length;
         Column[] columns = new Column[size];
-        Expression[] expressions = new Expression[size];
-        int i = 0;
-        for (NVPair p : nvPairs) {
-            columns[i] = dbTable.getColumn(p.name);
-            expressions[i] = ValueExpression.get(p.value);
-            i++;
+        for (int i = 0; i < size; i++) {
+            columns[i] = dbTable.getColumn(modelProperties[indexes[i]].getName());
+        }
+        if (upsert) {
+            Merge merge = new Merge(session);
+            merge.setTable(dbTable);
+            merge.setColumns(columns);
+            merge.setKeys(getUpsertKeys(dbTable, columns));
+            merge.addRow(expressions);
+            merge.prepare();
+            return merge;
         }
+        Insert insert = new Insert(session);
         insert.setColumns(columns);
         insert.addRow(expressions);
         insert.setTable(dbTable);
         insert.prepare();
-        logger.info("execute sql: " + insert.getPlanSQL());
-        insert.executeUpdate();
-        long rowId = session.getLastRowKey();
-        _rowid_.set(rowId);
+        return insert;
+    }
 
-        if (session.isAutoCommit()) {
-            session.commit();
+    // upsert按主键判断记录是否存在，所以主键字段必须都有值
+    private static Column[] getUpsertKeys(Table dbTable, Column[] columns) {
+        Index primaryKey = dbTable.findPrimaryKey();
+        if (primaryKey == null)
+            throw new UnsupportedOperationException(
+                    "The upsert operation needs a primary key, table: " + dbTable.getSQL());
+        Column[] keys = primaryKey.getColumns();
+        for (Column key : keys) {
+            if (!Arrays.asList(columns).contains(key))
+                throw new IllegalStateException("The upsert operation needs the value of " + key.getName());
+        }
+        return keys;
+    }
+
+    /**
+     * Insert the model, or update the record with the same primary key if it exists, in one statement.
+     * <p>
+     * The primary key properties must be set, the associate models are not written.
+     * </p>
+     */
+    public int upsert() {
+        return upsert(null);
+    }
+
+    public int upsert(Long tid) {
+        checkNotDao("upsert");
+        QueryTrace trace = QueryTrace.begin("upsert", this);
+        DmlCache.CachedStatement cs = prepareWrite(tid, true, true);
+        trace.shape("upsert", cs.key);
+        trace.prepared();
+        int count = executeUpdate(cs);
+        trace.executed();
+        trace.end(cs.statement, cs.parameters, count);
+        invalidateEntityCacheForInsert();
+        reset();
+        closeStatement(cs);
+        release();
+        return count;
+    }
+
+    /**
+     * Return a builder that inserts models in batches.
+     */
+    public ModelBatch<T> batch() {
+        return new ModelBatch<>(this);
+    }
+
+    /**
+     * Insert all the models, the generated rowids are returned in input order.
+     */
+    public long[] insertAll(Collection<T> models) {
+        return insertAll(models, DEFAULT_BATCH_SIZE, null);
+    }
+
+    public long[] insertAll(Collection<T> models, Long tid) {
+        return insertAll(models, DEFAULT_BATCH_SIZE, tid);
+    }
+
+    /**
+     * Models with the same column set share one prepared insert,
+     * and in auto commit mode every batchSize rows are committed at once.
+     */
+    public long[] insertAll(Collection<T> models, int batchSize, Long tid) {
+        Model<T> m2 = maybeCopy();
+        if (m2 != this) {
+            return m2.insertAll(models, batchSize, tid);
+        }
+        ArrayList<Model<T>> modelArray = new ArrayList<>(models.size());
+        long[] rowIds;
+        try {
+            rowIds = writeAll(models, modelArray, batchSize, tid, false);
+        } catch (RuntimeException e) {
+            release();
+            throw e;
+        }
+        for (int i = 0, size = modelArray.size(); i < size; i++) {
+            Model<T> m = modelArray.get(i);
+            m.invalidateEntityCacheForInsert();
+            m.reset();
+        }
+        release();
+        return rowIds;
+    }
+
+    /**
+     * Upsert all the models by their primary keys, return the number of the written rows.
+     */
+    public int upsertAll(Collection<T> models) {
+        return upsertAll(models, DEFAULT_BATCH_SIZE, null);
+    }
+
+    public int upsertAll(Collection<T> models, Long tid) {
+        return upsertAll(models, DEFAULT_BATCH_SIZE, tid);
+    }
+
+    /**
+     * Models with the same column set share one prepared merge statement,
+     * and in auto commit mode every batchSize rows are committed at once.
+     */
+    public int upsertAll(Collection<T> models, int batchSize, Long tid) {
+        Model<T> m2 = maybeCopy();
+        if (m2 != this) {
+            return m2.upsertAll(models, batchSize, tid);
+        }
+        ArrayList<Model<T>> modelArray = new ArrayList<>(models.size());
+        long[] counts;
+        try {
+            counts = writeAll(models, modelArray, batchSize, tid, true);
+        } catch (RuntimeException e) {
+            release();
+            throw e;
+        }
+        int count = 0;
+        for (int i = 0, size = modelArray.size(); i < size; i++) {
+            Model<T> m = modelArray.get(i);
+            m.invalidateEntityCacheForInsert();
+            m.reset();
+            count += counts[i];
+        }
+        release();
+        return count;
+    }
+
+    // insertAll和upsertAll的公共部分，insert时返回每个模型的rowid，upsert时返回每个模型写入的记录数
+    private long[] writeAll(Collection<T> models, ArrayList<Model<T>> modelArray, int batchSize, Long tid,
+            boolean upsert) {
+        if (batchSize <= 0)
+            batchSize = DEFAULT_BATCH_SIZE;
+        if (models.isEmpty())
+            return new long[0];
+        ServerSession session = getSession(tid);
+        boolean autoCommit = session.isAutoCommit();
+        // 自动提交模式下由这里控制提交的时机，每batchSize条记录提交一次
+        session.setAutoCommit(false);
+        try {
+            long[] rowIds = writeAll(session, models, modelArray, autoCommit ? batchSize : 0, upsert);
+            if (!upsert) {
+                // 关联模型和它们的父模型在同一个事务中提交
+                boolean hasChildren = false;
+                for (int i = 0, size = modelArray.size(); i < size; i++) {
+                    Model<T> m = modelArray.get(i);
+                    m._rowid_.set(rowIds[i]);
+                    if (m.modelList != null) {
+                        m.insertChildren(session, rowIds[i]);
+                        hasChildren = true;
+                    }
+                }
+                if (autoCommit && hasChildren)
+                    GroupCommit.commit(session);
+            }
+            return rowIds;
+        } catch (RuntimeException e) {
+            if (autoCommit)
+                session.rollback();
+            throw e;
+        } finally {
+            session.setAutoCommit(autoCommit);
         }
-        if (modelList != null) {
-            for (Model<?> m : modelList) {
-                m.insert(tid);
+    }
+
+    // 按字段集合分组，同一组用同一个Insert或Merge，commitSize大于0时每commitSize条记录提交一次，否则由调用者提交
+    @SuppressWarnings("unchecked")
+    private long[] writeAll(ServerSession session, Collection<? extends Model<?>> models,
+            ArrayList<Model<T>> modelArray, int commitSize, boolean upsert) {
+        String operation = upsert ? "upsertAll" : "insertAll";
+        int size = models.size();
+        long[] rowIds = new long[size];
+        ArrayList<int[]> indexesArray = new ArrayList<>(size);
+        LinkedHashMap<String, ArrayList<Integer>> groups = new LinkedHashMap<>();
+        for (Model<?> t : models) {
+            Model<T> m = (Model<T>) t;
+            m.checkNotDao(upsert ? "upsert" : "insert");
+            // 同一个模型类的字段序号是固定的，所以直接用序号来分组
+            int[] indexes = m.getDirtyIndexes();
+            String key = Arrays.toString(indexes);
+            ArrayList<Integer> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(key, group);
+            }
+            group.add(modelArray.size());
+            modelArray.add(m);
+            indexesArray.add(indexes);
+        }
+
+        for (ArrayList<Integer> group : groups.values()) {
+            QueryTrace trace = QueryTrace.begin(operation, modelArray.get(group.get(0)));
+            trace.shape(operation, null);
+            int[] indexes = indexesArray.get(group.get(0));
+            int columnCount = indexes.length;
+            Parameter[] parameters = new Parameter[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                parameters[i] = new Parameter(i);
+            }
+            StatementBase statement = createWriteStatement(session, indexes, parameters, upsert);
+            trace.prepared();
+
+            int count = 0;
+            for (int index : group) {
+                Model<T> m = modelArray.get(index);
+                for (int i = 0; i < columnCount; i++) {
+                    parameters[i].setValue(m.getValue(indexes[i]));
+                }
+                int updateCount = statement.executeUpdate();
+                rowIds[index] = upsert ? updateCount : session.getLastRowKey();
+                count++;
+                if (commitSize > 0 && count % commitSize == 0) {
+                    GroupCommit.commit(session);
+                }
             }
+            if (commitSize > 0 && count % commitSize != 0) {
+                GroupCommit.commit(session);
+            }
+            trace.executed();
+            // 参数中是这一组最后一条记录的值
+            trace.end(statement, Arrays.asList(parameters), count);
         }
-        reset();
-        return rowId;
+        return rowIds;
     }
 
     public int update() {
@@ -702,48 +2549,221 @@ public abstract class Model<T> {
     }
 
     public int update(Long tid) {
-        ServerSession session = getSession(tid);
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return m.update(tid);
+        }
+        QueryTrace trace = QueryTrace.begin("update", this);
+        DmlCache.CachedStatement cs = prepareUpdate(tid, true);
+        trace.shape("update", cs.key);
+        trace.prepared();
+        return executeUpdate(trace, cs);
+    }
+
+    public CompletableFuture<Integer> updateAsync() {
+        return updateAsync(null);
+    }
+
+    public CompletableFuture<Integer> updateAsync(Long tid) {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return m.updateAsync(tid);
+        }
+        QueryTrace trace = QueryTrace.begin("updateAsync", this);
+        DmlCache.CachedStatement cs = prepareUpdate(tid, false);
+        trace.shape("updateAsync", cs.key);
+        trace.prepared();
+        return executeUpdateAsync(trace, cs);
+    }
+
+    // 新值和where条件中的值都是参数，所以key只包含字段、表达式和条件的形状
+    private DmlCache.CachedStatement prepareUpdate(Long tid, boolean cacheable) {
         Table dbTable = modelTable.getTable();
-        Update update = new Update(session);
-        TableFilter tableFilter = new TableFilter(session, dbTable, null, true, null);
-        update.setTableFilter(tableFilter);
         checkWhereExpression(dbTable, "update");
-        if (whereExpressionBuilder != null)
-            update.setCondition(whereExpressionBuilder.getExpression());
-        for (NVPair p : nvPairs) {
-            update.setAssignment(dbTable.getColumn(p.name), ValueExpression.get(p.value));
+        int[] indexes = getDirtyIndexes();
+        Expression[] expressions = new Expression[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            int index = indexes[i];
+            expressions[i] = assignments != null && assignments[index] != null ? assignments[index]
+                    : createParameter(getValue(index));
+        }
+        String key = null;
+        if (cacheable && useDmlCache(tid)) {
+            StringBuilder buff = new StringBuilder("update SET");
+            for (int i = 0; i < indexes.length; i++) {
+                buff.append(' ').append(modelProperties[indexes[i]].getName()).append('=')
+                        .append(expressions[i].getSQL());
+            }
+            key = getStatementSkeleton(buff).toString();
         }
-        update.prepare();
-        reset();
-        logger.info("execute sql: " + update.getPlanSQL());
-        int count = update.executeUpdate();
-        if (session.isAutoCommit()) {
-            session.commit();
+        DmlCache.CachedStatement cs = pollCachedStatement(key);
+        if (cs != null)
+            return cs;
+        ServerSession session = getSession(tid);
+        try {
+            Update update = new Update(session);
+            TableFilter tableFilter = new TableFilter(session, dbTable, null, true, null);
+            update.setTableFilter(tableFilter);
+            if (whereExpressionBuilder != null)
+                update.setCondition(whereExpressionBuilder.getExpression());
+            for (int i = 0; i < indexes.length; i++) {
+                update.setAssignment(dbTable.getColumn(modelProperties[indexes[i]].getName()), expressions[i]);
+            }
+            update.prepare();
+            return newCachedStatement(key, session, update);
+        } catch (RuntimeException e) {
+            release();
+            throw e;
         }
+    }
+
+    // update和delete的公共部分
+    private int executeUpdate(QueryTrace trace, DmlCache.CachedStatement cs) {
+        EntityCache entityCache = EntityCache.peekEntityCache(getClass());
+        Value entityKey = entityCache == null ? null : getEntityKeyForWrite();
+        invalidateEntityCache(cs.session, entityCache, entityKey);
+        reset();
+        int count = executeUpdate(cs);
+        trace.executed();
+        trace.end(cs.statement, cs.parameters, count);
+        invalidateEntityCache(cs.session, entityCache, entityKey);
+        closeStatement(cs);
+        release();
         return count;
     }
 
+    // 执行失败的语句不再放回缓存，session也要归还
+    private int executeUpdate(DmlCache.CachedStatement cs) {
+        try {
+            int count = cs.statement.executeUpdate();
+            if (cs.session.isAutoCommit()) {
+                GroupCommit.commit(cs.session);
+            }
+            return count;
+        } catch (RuntimeException e) {
+            discardStatement(cs);
+            release();
+            throw e;
+        }
+    }
+
+    // updateAsync和deleteAsync的公共部分
+    private CompletableFuture<Integer> executeUpdateAsync(QueryTrace trace, DmlCache.CachedStatement cs) {
+        ServerSession session = cs.session;
+        StatementBase statement = cs.statement;
+        EntityCache entityCache = EntityCache.peekEntityCache(getClass());
+        Value entityKey = entityCache == null ? null : getEntityKeyForWrite();
+        invalidateEntityCache(session, entityCache, entityKey);
+        // 回调可能在其他线程中执行并回收当前dao，所以必须在执行前reset
+        reset();
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        statement.executeUpdateAsync(ar -> {
+            if (!ar.isSucceeded()) {
+                future.completeExceptionally(ar.getCause());
+                return;
+            }
+            commitAsync(session, future, () -> {
+                trace.executed();
+                trace.end(statement, cs.parameters, ar.getResult());
+                invalidateEntityCache(session, entityCache, entityKey);
+                return ar.getResult();
+            });
+        });
+        // 失败时也要归还session和事务
+        return future.whenComplete((count, t) -> release());
+    }
+
     public int delete() {
         return delete(null);
     }
 
     public int delete(Long tid) {
-        ServerSession session = getSession(tid);
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return m.delete(tid);
+        }
+        QueryTrace trace = QueryTrace.begin("delete", this);
+        DmlCache.CachedStatement cs = prepareDelete(tid, true);
+        trace.shape("delete", cs.key);
+        trace.prepared();
+        return executeUpdate(trace, cs);
+    }
+
+    public CompletableFuture<Integer> deleteAsync() {
+        return deleteAsync(null);
+    }
+
+    public CompletableFuture<Integer> deleteAsync(Long tid) {
+        Model<T> m = maybeCopy();
+        if (m != this) {
+            return m.deleteAsync(tid);
+        }
+        QueryTrace trace = QueryTrace.begin("deleteAsync", this);
+        DmlCache.CachedStatement cs = prepareDelete(tid, false);
+        trace.shape("deleteAsync", cs.key);
+        trace.prepared();
+        return executeUpdateAsync(trace, cs);
+    }
+
+    private DmlCache.CachedStatement prepareDelete(Long tid, boolean cacheable) {
         Table dbTable = modelTable.getTable();
-        Delete delete = new Delete(session);
-        TableFilter tableFilter = new TableFilter(session, dbTable, null, true, null);
-        delete.setTableFilter(tableFilter);
         checkWhereExpression(dbTable, "delete");
-        if (whereExpressionBuilder != null)
-            delete.setCondition(whereExpressionBuilder.getExpression());
-        delete.prepare();
-        reset();
-        logger.info("execute sql: " + delete.getPlanSQL());
-        int count = delete.executeUpdate();
-        if (session.isAutoCommit()) {
-            session.commit();
+        String key = null;
+        if (cacheable && useDmlCache(tid))
+            key = getStatementSkeleton(new StringBuilder("delete")).toString();
+        DmlCache.CachedStatement cs = pollCachedStatement(key);
+        if (cs != null)
+            return cs;
+        ServerSession session = getSession(tid);
+        try {
+            Delete delete = new Delete(session);
+            TableFilter tableFilter = new TableFilter(session, dbTable, null, true, null);
+            delete.setTableFilter(tableFilter);
+            if (whereExpressionBuilder != null)
+                delete.setCondition(whereExpressionBuilder.getExpression());
+            delete.prepare();
+            return newCachedStatement(key, session, delete);
+        } catch (RuntimeException e) {
+            release();
+            throw e;
         }
-        return count;
+    }
+
+    /**
+     * Return the cache of prepared insert, update and delete statements shared by all instances of this model class.
+     */
+    public DmlCache getDmlCache() {
+        return DmlCache.getDmlCache(getClass());
+    }
+
+    // 跟查询缓存一样，只有自动提交模式下的写操作才使用缓存的语句，IN列表的值是常量，不能复用
+    private boolean useDmlCache(Long tid) {
+        return tid == null && DmlCache.isEnabled() && peekSession() == null && !hasInList(whereExpressionBuilder);
+    }
+
+    private DmlCache.CachedStatement pollCachedStatement(String key) {
+        if (key == null)
+            return null;
+        return getDmlCache().poll(key, parameters);
+    }
+
+    private DmlCache.CachedStatement newCachedStatement(String key, ServerSession session, StatementBase statement) {
+        // 不能缓存的语句使用的还是session池或事务中的session
+        if (key == null)
+            return new DmlCache.CachedStatement(null, null, session, statement, parameters);
+        // 缓存的语句独占它的session，不再归还给session池，语句被淘汰时再关闭
+        return new DmlCache.CachedStatement(key, modelTable.getSessionPool(), detachSession(), statement,
+                parameters);
+    }
+
+    private void closeStatement(DmlCache.CachedStatement cs) {
+        if (cs.key != null)
+            getDmlCache().offer(cs);
+    }
+
+    private static void discardStatement(DmlCache.CachedStatement cs) {
+        if (cs.key != null)
+            cs.close();
     }
 
     private void checkWhereExpression(Table dbTable, String methodName) {
@@ -764,27 +2784,46 @@ public abstract class Model<T> {
     @SuppressWarnings("unchecked")
     Model<T> maybeCopy() {
         if (isRootDao()) {
+            Model<T> m = idleChildDao.get();
+            if (m != null) {
+                idleChildDao.set(null);
+                return m;
+            }
             return newInstance(modelTable.copy(), CHILD_DAO);
         } else {
             return this;
         }
     }
 
+    // 根dao的同步查询直接在子dao上执行，子dao没有交给调用者，结果也不引用它，查询结束后可以留给当前线程的下一个查询。
+    // where()等方法返回的子dao已经被调用者持有了，异步查询、迭代器和流还会在查询结束前使用子dao，它们都不回收
+    <R> R reclaim(Model<?> child, R result) {
+        if (isRootDao() && child != this && child.session == null && child.transactionContext == null
+                && idleChildDao.get() == null) {
+            child.reset();
+            @SuppressWarnings("unchecked")
+            Model<T> m = (Model<T>) child;
+            idleChildDao.set(m);
+        }
+        return result;
+    }
+
     private void maybeCreateWhereExpression(Table dbTable) {
         // 没有指定where条件时，如果存在ROWID，则用ROWID当where条件
         if (_rowid_.get() != 0) {
             peekExprBuilder().eq(Column.ROWID, _rowid_.get());
         } else {
-            if (nvPairs == null)
+            if (dirtyBits == null)
                 return;
             Index primaryKey = dbTable.findPrimaryKey();
             if (primaryKey != null) {
                 for (Column c : primaryKey.getColumns()) {
                     // 如果主键由多个字段组成，当前面的字段没有指定时就算后面的指定了也不用它们来生成where条件
                     boolean found = false;
-                    for (NVPair p : nvPairs) {
-                        if (dbTable.getDatabase().equalsIdentifiers(p.name, c.getName())) {
-                            peekExprBuilder().eq(p.name, p.value);
+                    for (int index : getDirtyIndexes()) {
+                        String name = modelProperties[index].getName();
+                        if (dbTable.getDatabase().equalsIdentifiers(name, c.getName())) {
+                            peekExprBuilder().eq(name, getValue(index));
                             found = true;
                             break;
                         }
@@ -799,18 +2838,21 @@ public abstract class Model<T> {
     private ArrayStack<ExpressionBuilder<T>> getStack() {
         if (expressionBuilderStack == null) {
             expressionBuilderStack = new ArrayStack<ExpressionBuilder<T>>();
+        }
+        if (expressionBuilderStack.isEmpty()) {
             expressionBuilderStack.push(getWhereExpressionBuilder());
         }
         return expressionBuilderStack;
     }
 
-    TableFilter createTableFilter() {
-        return new TableFilter(modelTable.getSession(), modelTable.getTable(), null, true, null);
+    // 关联查询的TableFilter在构建查询时就要创建，它们和Select使用同一个session
+    private TableFilter createTableFilter(ServerSession session) {
+        return new TableFilter(session, modelTable.getTable(), null, true, null);
     }
 
     private ArrayStack<TableFilter> getTableFilterStack() {
         if (tableFilterStack == null) {
-            TableFilter tableFilter = createTableFilter();
+            TableFilter tableFilter = createTableFilter(borrowSession());
             tableFilterStack = new ArrayStack<>();
             tableFilterStack.push(tableFilter);
         }
@@ -870,7 +2912,7 @@ public abstract class Model<T> {
         if (m2 != this) {
             return m2.join(m);
         }
-        getTableFilterStack().push(m.createTableFilter());
+        getTableFilterStack().push(m.createTableFilter(borrowSession()));
         m.tableFilterStack = getTableFilterStack();
         return root;
     }
@@ -887,99 +2929,51 @@ public abstract class Model<T> {
 
     public long beginTransaction() {
         checkDao("beginTransaction");
-        Table dbTable = modelTable.getTable();
-        ServerSession session = dbTable.getDatabase().createSession(modelTable.getSession().getUser());
-        Transaction t = session.getTransaction();
+        // 事务独占一个新的session，不使用dao自身的session，所以多个线程可以同时通过同一个dao开始事务
+        ServerSession session = modelTable.getDatabase().createSession(modelTable.getMetaSession().getUser());
         session.setAutoCommit(false);
-        long tid = t.getTransactionId();
-        currentSessions.put(tid, session);
-        int hash = getCurrentThreadHashCode();
-        List<ServerSession> sessions = sessionMap.get(hash);
-        if (sessions == null) {
-            sessions = new ArrayList<>();
-            sessionMap.put(hash, sessions);
-        }
-        sessions.add(session);
-        return tid;
+        return TransactionContext.begin(session).getTransactionId();
+    }
+
+    static int getActiveTransactionCount() {
+        return TransactionContext.getActiveCount();
     }
 
     public void commitTransaction() {
         checkDao("commitTransaction");
-        Long tid = getAndRemoveLastTransaction();
-        if (tid != null) {
-            commitTransaction(tid.longValue());
+        TransactionContext context = TransactionContext.current();
+        if (context != null) {
+            context.end(true);
         }
     }
 
     public void commitTransaction(long tid) {
         checkDao("commitTransaction");
-        ServerSession s = currentSessions.remove(tid);
-        if (s != null) {
-            removeSession(tid);
-            s.commit();
+        TransactionContext context = TransactionContext.get(tid);
+        if (context != null) {
+            context.end(true);
         }
     }
 
     public void rollbackTransaction() {
         checkDao("rollbackTransaction");
-        Long tid = getAndRemoveLastTransaction();
-        if (tid != null) {
-            rollbackTransaction(tid.longValue());
+        TransactionContext context = TransactionContext.current();
+        if (context != null) {
+            context.end(false);
         }
     }
 
     public void rollbackTransaction(long tid) {
         checkDao("rollbackTransaction");
-        ServerSession s = currentSessions.remove(tid);
-        if (s != null) {
-            removeSession(tid);
-            s.rollback();
+        TransactionContext context = TransactionContext.get(tid);
+        if (context != null) {
+            context.end(false);
         }
     }
 
     private ServerSession peekSession() {
-        int hash = getCurrentThreadHashCode();
-        List<ServerSession> sessions = sessionMap.get(hash);
-        if (sessions != null && !sessions.isEmpty()) {
-            return sessions.get(sessions.size() - 1);
-        } else {
-            return null;
-        }
-    }
-
-    private void removeSession(long tid) {
-        int hash = getCurrentThreadHashCode();
-        List<ServerSession> sessions = sessionMap.get(hash);
-        if (sessions != null && !sessions.isEmpty()) {
-            int index = -1;
-            for (ServerSession s : sessions) {
-                index++;
-                if (s.getTransaction().getTransactionId() == tid) {
-                    break;
-                }
-            }
-            if (index > -1) {
-                sessions.remove(index);
-            }
-            if (sessions.isEmpty()) {
-                sessionMap.remove(hash);
-            }
-        }
-    }
-
-    private Long getAndRemoveLastTransaction() {
-        int hash = getCurrentThreadHashCode();
-        List<ServerSession> sessions = sessionMap.remove(hash);
-        Long tid = null;
-        if (sessions != null && !sessions.isEmpty()) {
-            ServerSession session = sessions.remove(sessions.size() - 1);
-            tid = Long.valueOf(session.getTransaction().getTransactionId());
-        }
-        return tid;
-    }
-
-    private int getCurrentThreadHashCode() {
-        return Thread.currentThread().hashCode();
+        TransactionContext context = TransactionContext.current();
+        return context == null ? null : context.getSession();
     }
 
     /**
@@ -1017,6 +3011,13 @@ public abstract class Model<T> {
             list.add(item);
         }
 
+        /**
+        * Removes all of the items from this stack.
+        */
+        public void clear() {
+            list.clear();
+        }
+
         /**
         * Removes the object at the top of this stack and returns that object as
         * the value of this function.
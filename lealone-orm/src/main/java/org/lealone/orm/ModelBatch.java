@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.orm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Collects models and inserts them in batches.
+ *
+ * @param <T> the model bean type
+ */
+public class ModelBatch<T> {
+
+    private final Model<T> dao;
+    private final ArrayList<T> models = new ArrayList<>();
+    private int batchSize = Model.DEFAULT_BATCH_SIZE;
+
+    ModelBatch(Model<T> dao) {
+        this.dao = dao;
+    }
+
+    public ModelBatch<T> add(T m) {
+        models.add(m);
+        return this;
+    }
+
+    @SafeVarargs
+    public final ModelBatch<T> add(T... mArray) {
+        for (T m : mArray)
+            models.add(m);
+        return this;
+    }
+
+    public ModelBatch<T> addAll(Collection<? extends T> c) {
+        models.addAll(c);
+        return this;
+    }
+
+    /**
+     * Set the number of rows committed at once in auto commit mode.
+     */
+    public ModelBatch<T> batchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public int size() {
+        return models.size();
+    }
+
+    public long[] insert() {
+        return insert(null);
+    }
+
+    public long[] insert(Long tid) {
+        long[] rowIds = dao.insertAll(models, batchSize, tid);
+        models.clear();
+        return rowIds;
+    }
+}
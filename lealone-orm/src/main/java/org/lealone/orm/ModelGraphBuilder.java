@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.orm;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.lealone.common.exceptions.DbException;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueNull;
+
+/**
+ * Assembles the models of a query result as the rows stream in.
+ * <p>
+ * For a join query the rows of one parent model repeat the parent columns once per associate row,
+ * so the parent and associate models are deduplicated by rowid in primitive long hash maps,
+ * each model is materialized once and added to its parent by the generated addXxx method when it is first seen.
+ * The associate tables that are not part of the query are skipped.
+ * </p>
+ *
+ * @param <T> the model bean type
+ */
+class ModelGraphBuilder<T> {
+
+    private static class Node {
+        final Model<?> prototype;
+        final Model.RowMapping mapping;
+        final Method add;
+        final LongObjectMap models = new LongObjectMap();
+        final Node[] children;
+
+        Node(Model<?> prototype, Model.RowMapping mapping, Method add, Node[] children) {
+            this.prototype = prototype;
+            this.mapping = mapping;
+            this.add = add;
+            this.children = children;
+        }
+    }
+
+    private final Model<T> model;
+    private final Model.RowMapping mapping;
+    private final ArrayList<T> list;
+    // 没有关联查询时每一行都是不同的模型，不需要去重
+    private final LongObjectMap models;
+    private final Node[] children;
+
+    /**
+     * Create a builder, the new parent models are added to the list if it is not null.
+     */
+    ModelGraphBuilder(Model<T> model, Model.RowMapping mapping, ArrayList<T> list) {
+        this.model = model;
+        this.mapping = mapping;
+        this.list = list;
+        if (mapping.isJoined()) {
+            models = new LongObjectMap();
+            children = createNodes(model.newInstance(mapping.getResultTable(), Model.REGULAR_MODEL));
+        } else {
+            models = null;
+            children = null;
+        }
+    }
+
+    // 原型模型只用来得到关联模型的类型，它们的newAssociateInstances方法每个类型只创建一个实例
+    private Node[] createNodes(Model<?> parentPrototype) {
+        List<Model<?>> prototypes = parentPrototype.newAssociateInstances();
+        if (prototypes == null || prototypes.isEmpty())
+            return null;
+        ArrayList<Node> nodes = new ArrayList<>(prototypes.size());
+        for (Model<?> prototype : prototypes) {
+            Model.RowMapping m = mapping.createAssociateMapping(prototype);
+            if (!m.hasRowId())
+                continue;
+            Method add = AssociationLoader.getAddMethod(parentPrototype.getClass(), prototype.getClass());
+            nodes.add(new Node(prototype, m, add, createNodes(prototype)));
+        }
+        return nodes.isEmpty() ? null : nodes.toArray(new Node[0]);
+    }
+
+    /**
+     * Add one row and return the parent model of the row.
+     */
+    @SuppressWarnings("unchecked")
+    T add(Value[] row) {
+        Model<?> parent = null;
+        long rowId = 0;
+        if (models != null) {
+            rowId = mapping.getRowId(row);
+            parent = (Model<?>) models.get(rowId);
+        }
+        if (parent == null) {
+            parent = model.newInstance(mapping.getResultTable(), Model.REGULAR_MODEL);
+            mapping.deserializeRowId(parent, row);
+            mapping.deserializeProperties(parent, row);
+            if (models != null)
+                models.put(rowId, parent);
+            if (list != null)
+                list.add((T) parent);
+        }
+        if (children != null) {
+            for (Node child : children)
+                add(child, parent, row);
+        }
+        return (T) parent;
+    }
+
+    private static void add(Node node, Model<?> parent, Value[] row) {
+        // 外连接没有匹配的记录时rowid是null
+        Value v = node.mapping.getRowIdValue(row);
+        if (v == null || v == ValueNull.INSTANCE)
+            return;
+        long rowId = v.getLong();
+        Model<?> m = (Model<?>) node.models.get(rowId);
+        if (m == null) {
+            m = node.prototype.newInstance(node.mapping.getResultTable(), Model.REGULAR_MODEL);
+            // 先加到父模型中再读字段值，因为addXxx会用父模型的字段值设置外键
+            try {
+                node.add.invoke(parent, m);
+            } catch (Exception e) {
+                throw DbException.convert(e);
+            }
+            node.mapping.deserializeRowId(m, row);
+            node.mapping.deserializeProperties(m, row);
+            node.models.put(rowId, m);
+        }
+        if (node.children != null) {
+            for (Node child : node.children)
+                add(child, m, row);
+        }
+    }
+
+    /**
+     * Forget the models seen so far, used when the iterator moves to the next parent model.
+     */
+    void clear() {
+        if (models != null)
+            models.clear();
+        if (children != null)
+            clear(children);
+    }
+
+    private static void clear(Node[] nodes) {
+        for (Node node : nodes) {
+            node.models.clear();
+            if (node.children != null)
+                clear(node.children);
+        }
+    }
+
+    /**
+     * An open addressing hash map with primitive long keys.
+     */
+    private static class LongObjectMap {
+
+        private long[] keys = new long[16];
+        private Object[] values = new Object[16];
+        private int size;
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        Object get(long key) {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            Object v;
+            while ((v = values[i]) != null) {
+                if (keys[i] == key)
+                    return v;
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        void put(long key, Object value) {
+            if ((size + 1) * 2 > keys.length)
+                resize();
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (values[i] != null) {
+                if (keys[i] == key) {
+                    values[i] = value;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            size++;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new Object[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != null)
+                    put(oldKeys[i], oldValues[i]);
+            }
+        }
+
+        void clear() {
+            if (size > 0) {
+                Arrays.fill(values, null);
+                size = 0;
+            }
+        }
+    }
+}
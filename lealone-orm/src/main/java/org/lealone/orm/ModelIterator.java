@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.orm;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.lealone.db.result.Result;
+import org.lealone.db.value.Value;
+
+/**
+ * An iterator over the result of a query, the rows are deserialized only when they are pulled.
+ *
+ * @param <T> the model bean type
+ */
+public class ModelIterator<T> implements Iterator<T>, AutoCloseable {
+
+    private final Model<T> model;
+    private final Result result;
+    private final boolean joined;
+    private final boolean lazy;
+    private final Runnable closeHandler;
+
+    private Model.RowMapping mapping;
+    private ModelGraphBuilder<T> builder;
+    private T next;
+    // 关联查询时读到下一条主表记录就说明当前主表记录已经完整了，下一条先暂存起来
+    private T pending;
+    private long pendingRowId;
+    private boolean closed;
+
+    ModelIterator(Model<T> model, Result result, boolean joined, boolean lazy, Runnable closeHandler) {
+        this.model = model;
+        this.result = result;
+        this.joined = joined;
+        this.lazy = lazy;
+        this.closeHandler = closeHandler;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null)
+            return true;
+        if (closed)
+            return false;
+        next = joined ? readNextJoined() : readNext();
+        if (next == null)
+            close();
+        return next != null;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        T t = next;
+        next = null;
+        return t;
+    }
+
+    private Value[] nextRow() {
+        if (!result.next())
+            return null;
+        if (mapping == null) {
+            mapping = model.createRowMapping(result, lazy);
+            builder = new ModelGraphBuilder<>(model, mapping, null);
+        }
+        return result.currentRow();
+    }
+
+    private T readNext() {
+        Value[] row = nextRow();
+        if (row == null)
+            return null;
+        return builder.add(row);
+    }
+
+    private T readNextJoined() {
+        T parent = pending;
+        long parentRowId = pendingRowId;
+        pending = null;
+        Value[] row;
+        while ((row = nextRow()) != null) {
+            long rowId = mapping.getRowId(row);
+            if (parent != null && rowId != parentRowId) {
+                // 只保留当前主表记录的模型，已经读完的模型不再需要去重
+                builder.clear();
+                pending = builder.add(row);
+                pendingRowId = rowId;
+                return parent;
+            }
+            parent = builder.add(row);
+            parentRowId = rowId;
+        }
+        return parent;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            result.close();
+            closeHandler.run();
+        }
+    }
+}
@@ -20,9 +20,9 @@ package org.lealone.orm;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.net.URL;
-import java.util.HashMap;
 
 import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueNull;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -33,12 +33,13 @@ import com.fasterxml.jackson.databind.JsonNode;
  * @param <R> The type of the owning root bean
  */
 @SuppressWarnings("unchecked")
-public abstract class ModelProperty<R> {
+public abstract class ModelProperty<R> implements SelectItem {
 
     protected final String name;
     protected final R root;
 
-    protected String fullName;
+    // 在所属模型中的序号，由Model.setModelProperties设置，字段值按这个序号存放在模型中
+    int index = -1;
 
     /**
      * Construct with a property name and root instance.
@@ -73,6 +74,8 @@ public abstract class ModelProperty<R> {
     }
 
     protected <P> P getModelProperty(Model<?> model) {
+        if (index >= 0)
+            return (P) model.modelProperties[index];
         return (P) model.getModelProperty(name);
     }
 
@@ -135,18 +138,85 @@ public abstract class ModelProperty<R> {
         return root;
     }
 
+    /**
+     * Count of the non null values, for select(...).
+     */
+    public AggregateProperty<R> count() {
+        return aggregate(AggregateProperty.COUNT, false);
+    }
+
+    /**
+     * Count of the distinct non null values, for select(...).
+     */
+    public AggregateProperty<R> countDistinct() {
+        return aggregate(AggregateProperty.COUNT, true);
+    }
+
+    protected final AggregateProperty<R> aggregate(int type, boolean distinct) {
+        return new AggregateProperty<>(this, type, distinct);
+    }
+
     /**
      * Return the property name.
      */
+    @Override
     public String getName() {
         return name;
     }
 
     protected String getFullName() {
-        if (fullName == null) {
-            fullName = getSchemaName() + "." + getTableName() + "." + name;
-        }
-        return fullName;
+        return getSchemaName() + "." + getTableName() + "." + name;
+    }
+
+    /**
+     * Whether the value is kept in the primitive slots of the model.
+     */
+    protected boolean isPrimitive() {
+        return false;
+    }
+
+    /**
+     * Return the current value as a database value, it is only called when the value is not null.
+     */
+    protected Value toValue() {
+        return ValueNull.INSTANCE;
+    }
+
+    protected final long getPrimitiveValue() {
+        return ((Model<?>) root).getPrimitiveValue(index);
+    }
+
+    protected final Object getObjectValue() {
+        return ((Model<?>) root).getObjectValue(index);
+    }
+
+    protected final boolean isNullValue() {
+        return ((Model<?>) root).isNullValue(index);
+    }
+
+    /**
+     * Assign the value loaded from the database, the property is not marked as changed.
+     */
+    protected final void setPrimitiveValue(long value) {
+        ((Model<?>) root).setPrimitiveValue(index, value);
+    }
+
+    protected final void setObjectValue(Object value) {
+        ((Model<?>) root).setObjectValue(index, value);
+    }
+
+    /**
+     * Let the update assign the current value of the column plus delta, the new value is computed by the database.
+     */
+    protected final void addDelta(Value delta) {
+        ((Model<?>) root).addAssignment(index, delta);
+    }
+
+    /**
+     * Mark the property as changed, so it will be written by insert or update.
+     */
+    protected final void markDirty() {
+        ((Model<?>) root).markDirty(index);
     }
 
     public final R eq(ModelProperty<?> p) {
@@ -174,7 +244,10 @@ public abstract class ModelProperty<R> {
         return root;
     }
 
-    public R deserialize(HashMap<String, Value> map) {
+    /**
+     * Deserialize the value of the column that this property is mapped to.
+     */
+    public R deserialize(Value v) {
         return root;
     }
 
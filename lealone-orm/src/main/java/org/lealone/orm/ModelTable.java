@@ -17,20 +17,40 @@
  */
 package org.lealone.orm;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.lealone.db.Database;
 import org.lealone.db.ServerSession;
-import org.lealone.db.ServerSessionFactory;
 import org.lealone.db.table.Table;
 
 public class ModelTable {
 
+    // 所有ModelTable共享的表元数据，执行过DDL后需要重新查找
+    private static final ConcurrentHashMap<String, TableInfo> tables = new ConcurrentHashMap<>();
+
+    private static class TableInfo {
+        final Table table;
+        final Database database;
+        final long modificationMetaId;
+
+        TableInfo(Table table, Database database) {
+            this.table = table;
+            this.database = database;
+            this.modificationMetaId = database.getModificationMetaId();
+        }
+
+        boolean isValid() {
+            return modificationMetaId == database.getModificationMetaId();
+        }
+    }
+
     private final String url;
     private final String databaseName;
     private final String schemaName;
     private final String tableName;
 
-    private Table table;
-    private ServerSession session;
+    private TableInfo tableInfo;
+    private SessionPool sessionPool;
 
     public ModelTable(String databaseName, String schemaName, String tableName) {
         this(null, databaseName, schemaName, tableName);
@@ -59,44 +79,76 @@ public class ModelTable {
 
     Table getTable() {
         attachToTable();
-        return table;
+        return tableInfo.table;
     }
 
-    ServerSession getSession() {
-        attachToTable();
-        return session;
+    /**
+     * Borrow a session for one operation, the caller must return it with {@link #returnSession}.
+     */
+    ServerSession borrowSession() {
+        return getSessionPool().borrowSession();
+    }
+
+    /**
+     * Return the shared session that is only used to create expressions, it never executes statements.
+     */
+    ServerSession getMetaSession() {
+        return getSessionPool().getMetaSession();
     }
 
     Database getDatabase() {
         attachToTable();
-        return table.getDatabase();
+        return tableInfo.database;
     }
 
     public ModelTable copy() {
         return new ModelTable(url, databaseName, schemaName, tableName);
     }
 
-    // 可能是延迟关联到Table
-    private void attachToTable() {
-        if (table == null) {
+    void returnSession(ServerSession session) {
+        getSessionPool().returnSession(session);
+    }
+
+    /**
+     * The session is taken over by the caller and will not be returned to the pool.
+     */
+    void detachSession(ServerSession session) {
+        getSessionPool().detachSession(session);
+    }
+
+    SessionPool getSessionPool() {
+        if (sessionPool == null) {
             String url = System.getProperty("lealone.jdbc.url");
             if (url == null) {
                 throw new RuntimeException("'lealone.jdbc.url' must be set");
             }
+            sessionPool = SessionPool.getSessionPool(url);
+        }
+        return sessionPool;
+    }
 
-            session = ServerSessionFactory.getInstance().createSession(url);
-            Database db = session.getDatabase();
-
-            // if (db.getSettings().databaseToUpper) {
-            // tableName = tableName.toUpperCase();
-            // }
-            // int dotPos = tableName.indexOf('.');
-            // String schemaName = Constants.SCHEMA_MAIN;
-            // if (dotPos > -1) {
-            // schemaName = tableName.substring(0, dotPos);
-            // tableName = tableName.substring(dotPos + 1);
-            // }
-            table = db.getSchema(schemaName).getTableOrView(session, tableName);
+    // 可能是延迟关联到Table，ModelTable会被复用，所以每次都检查是否执行过DDL
+    private void attachToTable() {
+        if (tableInfo == null || !tableInfo.isValid()) {
+            String key = databaseName + "." + schemaName + "." + tableName;
+            TableInfo info = tables.get(key);
+            if (info == null || !info.isValid()) {
+                ServerSession session = getMetaSession();
+                Database db = session.getDatabase();
+
+                // if (db.getSettings().databaseToUpper) {
+                // tableName = tableName.toUpperCase();
+                // }
+                // int dotPos = tableName.indexOf('.');
+                // String schemaName = Constants.SCHEMA_MAIN;
+                // if (dotPos > -1) {
+                // schemaName = tableName.substring(0, dotPos);
+                // tableName = tableName.substring(dotPos + 1);
+                // }
+                info = new TableInfo(db.getSchema(schemaName).getTableOrView(session, tableName), db);
+                tables.put(key, info);
+            }
+            tableInfo = info;
         }
     }
 
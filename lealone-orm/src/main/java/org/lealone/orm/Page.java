@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.orm;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueNull;
+import org.lealone.db.value.ValueString;
+
+import io.vertx.core.json.JsonArray;
+
+/**
+ * One page of models returned by {@link Model#findPage(int)}.
+ * <p>
+ * The continuation token holds the order by values of the last model, pass it to {@link Model#after(String)}
+ * with the same conditions and order to get the next page.
+ * </p>
+ */
+public class Page<T> {
+
+    private final List<T> list;
+    private final String continuationToken;
+
+    Page(List<T> list, String continuationToken) {
+        this.list = list;
+        this.continuationToken = continuationToken;
+    }
+
+    public List<T> getList() {
+        return list;
+    }
+
+    /**
+     * Return the token of the next page, or null if this is the last page.
+     */
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    public boolean hasNext() {
+        return continuationToken != null;
+    }
+
+    // 用json数组保存每个排序字段的字符串值，查询时再由数据库转换成字段的类型
+    static String encode(Value[] values) {
+        JsonArray array = new JsonArray();
+        for (Value v : values) {
+            if (v == ValueNull.INSTANCE)
+                array.addNull();
+            else
+                array.add(v.getString());
+        }
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(array.encode().getBytes(StandardCharsets.UTF_8));
+    }
+
+    static Value[] decode(String token) {
+        JsonArray array;
+        try {
+            array = new JsonArray(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid continuation token: " + token, e);
+        }
+        Value[] values = new Value[array.size()];
+        for (int i = 0; i < values.length; i++) {
+            String s = array.getString(i);
+            values[i] = s == null ? ValueNull.INSTANCE : ValueString.get(s);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.orm;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.lealone.db.ServerSession;
+import org.lealone.sql.dml.Select;
+import org.lealone.sql.expression.Parameter;
+
+/**
+ * Per model class cache of prepared queries, keyed by the shape of the query.
+ * <p>
+ * The shape contains the operation, the projection, the joins, the conditions, the grouping and the ordering,
+ * the literal values are bound as parameters, so the same shape reuses the optimized plan.
+ * </p>
+ */
+public class QueryCache extends StatementPool<QueryCache.CachedSelect> {
+
+    private static final int MAX_SIZE = Integer.getInteger("lealone.orm.query.cache.size", 256);
+
+    private static final ConcurrentHashMap<Class<?>, QueryCache> queryCaches = new ConcurrentHashMap<>();
+
+    public static QueryCache getQueryCache(Class<?> modelClass) {
+        QueryCache cache = queryCaches.get(modelClass);
+        if (cache == null) {
+            cache = new QueryCache();
+            QueryCache old = queryCaches.putIfAbsent(modelClass, cache);
+            if (old != null)
+                cache = old;
+        }
+        return cache;
+    }
+
+    static boolean isEnabled() {
+        return MAX_SIZE > 0;
+    }
+
+    static class CachedSelect extends StatementPool.PooledStatement {
+        final Select select;
+
+        CachedSelect(SessionPool sessionPool, ServerSession session, Select select, ArrayList<Parameter> parameters) {
+            super(sessionPool, session, select, parameters);
+            this.select = select;
+        }
+    }
+
+    private QueryCache() {
+        super(MAX_SIZE);
+    }
+}
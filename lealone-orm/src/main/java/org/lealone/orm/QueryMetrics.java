@@ -0,0 +1,356 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.orm;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.lealone.common.logging.Logger;
+import org.lealone.common.logging.LoggerFactory;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Latency histograms and counters of the statements executed by the ORM, one entry per query shape.
+ * <p>
+ * A query shape is the model class, the operation and the skeleton of the statement, that is the projection,
+ * the joins, the conditions and the ordering with the literal values replaced by parameters.
+ * Each shape records the call count, the row count and the time spent in the prepare, execute and deserialize phases.
+ * </p>
+ * <p>
+ * The metrics are disabled by default, they are enabled by lealone.orm.metrics=true or {@link #setEnabled(boolean)},
+ * and exposed through the MXBean org.lealone.orm:type=QueryMetrics and {@link #snapshot()}.
+ * At most lealone.orm.metrics.max.shapes shapes (default 1000) are kept, the others are recorded by operation.
+ * </p>
+ */
+public class QueryMetrics {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueryMetrics.class);
+
+    public static final String OBJECT_NAME = "org.lealone.orm:type=QueryMetrics";
+
+    private static final int MAX_SHAPES = Integer.getInteger("lealone.orm.metrics.max.shapes", 1000);
+
+    private static volatile boolean enabled;
+    private static boolean registered;
+
+    private static final ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, ShapeMetrics>> metrics = //
+            new ConcurrentHashMap<>();
+    private static final AtomicInteger shapeCount = new AtomicInteger();
+    // 缓存语句的key对应的查询形状，每个key只生成一次形状
+    private static final ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, String>> keyShapes = //
+            new ConcurrentHashMap<>();
+
+    static {
+        if (Boolean.getBoolean("lealone.orm.metrics"))
+            setEnabled(true);
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        if (enabled)
+            registerMBean();
+        QueryMetrics.enabled = enabled;
+    }
+
+    private static synchronized void registerMBean() {
+        if (registered)
+            return;
+        registered = true;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name))
+                server.registerMBean(new MXBeanImpl(), name);
+        } catch (Throwable t) {
+            logger.warn("Failed to register " + OBJECT_NAME, t);
+        }
+    }
+
+    static String getShape(Class<?> modelClass, String key) {
+        ConcurrentHashMap<String, String> map = keyShapes.get(modelClass);
+        return map == null ? null : map.get(key);
+    }
+
+    static void putShape(Class<?> modelClass, String key, String shape) {
+        ConcurrentHashMap<String, String> map = keyShapes.get(modelClass);
+        if (map == null) {
+            map = new ConcurrentHashMap<>();
+            ConcurrentHashMap<String, String> old = keyShapes.putIfAbsent(modelClass, map);
+            if (old != null)
+                map = old;
+        }
+        // 语句缓存淘汰的key不会从这里删除，超过上限时全部清空，之后再重新生成
+        if (map.size() >= MAX_SHAPES)
+            map.clear();
+        map.put(key, shape);
+    }
+
+    static void record(Class<?> modelClass, String operation, String shape, long prepareNanos, long executeNanos,
+            long deserializeNanos, int rowCount) {
+        ConcurrentHashMap<String, ShapeMetrics> map = metrics.get(modelClass);
+        if (map == null) {
+            map = new ConcurrentHashMap<>();
+            ConcurrentHashMap<String, ShapeMetrics> old = metrics.putIfAbsent(modelClass, map);
+            if (old != null)
+                map = old;
+        }
+        ShapeMetrics m = map.get(shape);
+        if (m == null) {
+            // 形状太多时只按操作统计，避免条件个数不固定的查询撑爆内存
+            if (shapeCount.get() >= MAX_SHAPES)
+                shape = operation;
+            m = map.get(shape);
+            if (m == null) {
+                m = new ShapeMetrics(modelClass, operation, shape);
+                ShapeMetrics old = map.putIfAbsent(shape, m);
+                if (old != null)
+                    m = old;
+                else
+                    shapeCount.incrementAndGet();
+            }
+        }
+        m.record(prepareNanos, executeNanos, deserializeNanos, rowCount);
+    }
+
+    public static int getActiveTransactionCount() {
+        return Model.getActiveTransactionCount();
+    }
+
+    public static int getActiveSessionCount() {
+        int count = 0;
+        for (SessionPool pool : SessionPool.getSessionPools())
+            count += pool.getActiveSize();
+        return count;
+    }
+
+    public static int getIdleSessionCount() {
+        int count = 0;
+        for (SessionPool pool : SessionPool.getSessionPools())
+            count += pool.getIdleSize();
+        return count;
+    }
+
+    public static List<ShapeSnapshot> getQueryShapes() {
+        ArrayList<ShapeSnapshot> list = new ArrayList<>(shapeCount.get());
+        for (ConcurrentHashMap<String, ShapeMetrics> map : metrics.values()) {
+            for (ShapeMetrics m : map.values())
+                list.add(m.snapshot());
+        }
+        return list;
+    }
+
+    public static List<ShapeSnapshot> getQueryShapes(Class<?> modelClass) {
+        ConcurrentHashMap<String, ShapeMetrics> map = metrics.get(modelClass);
+        if (map == null)
+            return Collections.emptyList();
+        ArrayList<ShapeSnapshot> list = new ArrayList<>(map.size());
+        for (ShapeMetrics m : map.values())
+            list.add(m.snapshot());
+        return list;
+    }
+
+    public static void reset() {
+        metrics.clear();
+        keyShapes.clear();
+        shapeCount.set(0);
+    }
+
+    /**
+     * Return all the metrics as a json object, the times are in microseconds.
+     */
+    public static JsonObject snapshot() {
+        JsonObject json = new JsonObject();
+        json.put("enabled", enabled);
+        json.put("activeTransactionCount", getActiveTransactionCount());
+        json.put("activeSessionCount", getActiveSessionCount());
+        json.put("idleSessionCount", getIdleSessionCount());
+        JsonArray shapes = new JsonArray();
+        for (ShapeSnapshot s : getQueryShapes())
+            shapes.add(s.toJson());
+        json.put("queryShapes", shapes);
+        return json;
+    }
+
+    private static class ShapeMetrics {
+        final String modelClass;
+        final String operation;
+        final String shape;
+        final LongAdder calls = new LongAdder();
+        final LongAdder rows = new LongAdder();
+        final LatencyHistogram prepare = new LatencyHistogram();
+        final LatencyHistogram execute = new LatencyHistogram();
+        final LatencyHistogram deserialize = new LatencyHistogram();
+
+        ShapeMetrics(Class<?> modelClass, String operation, String shape) {
+            this.modelClass = modelClass.getName();
+            this.operation = operation;
+            this.shape = shape;
+        }
+
+        void record(long prepareNanos, long executeNanos, long deserializeNanos, int rowCount) {
+            calls.increment();
+            if (rowCount > 0)
+                rows.add(rowCount);
+            prepare.record(TimeUnit.NANOSECONDS.toMicros(prepareNanos));
+            execute.record(TimeUnit.NANOSECONDS.toMicros(executeNanos));
+            deserialize.record(TimeUnit.NANOSECONDS.toMicros(deserializeNanos));
+        }
+
+        ShapeSnapshot snapshot() {
+            return new ShapeSnapshot(modelClass, operation, shape, calls.sum(), rows.sum(), prepare.snapshot(),
+                    execute.snapshot(), deserialize.snapshot());
+        }
+    }
+
+    /**
+     * A point in time view of the metrics of one query shape.
+     */
+    public static class ShapeSnapshot {
+
+        private final String modelClass;
+        private final String operation;
+        private final String shape;
+        private final long callCount;
+        private final long rowCount;
+        private final LatencyHistogram.Snapshot prepare;
+        private final LatencyHistogram.Snapshot execute;
+        private final LatencyHistogram.Snapshot deserialize;
+
+        ShapeSnapshot(String modelClass, String operation, String shape, long callCount, long rowCount,
+                LatencyHistogram.Snapshot prepare, LatencyHistogram.Snapshot execute,
+                LatencyHistogram.Snapshot deserialize) {
+            this.modelClass = modelClass;
+            this.operation = operation;
+            this.shape = shape;
+            this.callCount = callCount;
+            this.rowCount = rowCount;
+            this.prepare = prepare;
+            this.execute = execute;
+            this.deserialize = deserialize;
+        }
+
+        public String getModelClass() {
+            return modelClass;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public String getShape() {
+            return shape;
+        }
+
+        public long getCallCount() {
+            return callCount;
+        }
+
+        public long getRowCount() {
+            return rowCount;
+        }
+
+        public LatencyHistogram.Snapshot getPrepare() {
+            return prepare;
+        }
+
+        public LatencyHistogram.Snapshot getExecute() {
+            return execute;
+        }
+
+        public LatencyHistogram.Snapshot getDeserialize() {
+            return deserialize;
+        }
+
+        public JsonObject toJson() {
+            JsonObject json = new JsonObject();
+            json.put("modelClass", modelClass);
+            json.put("operation", operation);
+            json.put("shape", shape);
+            json.put("callCount", callCount);
+            json.put("rowCount", rowCount);
+            json.put("prepare", toJson(prepare));
+            json.put("execute", toJson(execute));
+            json.put("deserialize", toJson(deserialize));
+            return json;
+        }
+
+        private static JsonObject toJson(LatencyHistogram.Snapshot s) {
+            JsonObject json = new JsonObject();
+            json.put("count", s.getCount());
+            json.put("mean", s.getMean());
+            json.put("max", s.getMax());
+            json.put("p50", s.getP50());
+            json.put("p90", s.getP90());
+            json.put("p99", s.getP99());
+            json.put("p999", s.getP999());
+            return json;
+        }
+    }
+
+    private static class MXBeanImpl implements QueryMetricsMXBean {
+
+        @Override
+        public boolean isEnabled() {
+            return QueryMetrics.isEnabled();
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) {
+            QueryMetrics.setEnabled(enabled);
+        }
+
+        @Override
+        public int getActiveTransactionCount() {
+            return QueryMetrics.getActiveTransactionCount();
+        }
+
+        @Override
+        public int getActiveSessionCount() {
+            return QueryMetrics.getActiveSessionCount();
+        }
+
+        @Override
+        public int getIdleSessionCount() {
+            return QueryMetrics.getIdleSessionCount();
+        }
+
+        @Override
+        public List<ShapeSnapshot> getQueryShapes() {
+            return QueryMetrics.getQueryShapes();
+        }
+
+        @Override
+        public void reset() {
+            QueryMetrics.reset();
+        }
+    }
+}
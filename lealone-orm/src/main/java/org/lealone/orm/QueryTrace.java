@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.orm;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lealone.common.logging.Logger;
+import org.lealone.common.logging.LoggerFactory;
+import org.lealone.sql.StatementBase;
+import org.lealone.sql.expression.Parameter;
+
+/**
+ * Tracing of the statements executed by the ORM.
+ * <p>
+ * A statement that takes longer than lealone.orm.slow.query.threshold milliseconds (default -1, that is disabled)
+ * is logged as a slow query, and the others are logged with the probability lealone.orm.trace.sample.rate
+ * (default 0). The log contains the plan SQL, the bound values, the row count and the time spent in the prepare,
+ * execute and deserialize phases.
+ * </p>
+ * <p>
+ * The time of each phase is also recorded by {@link QueryMetrics} per query shape when it is enabled.
+ * When all of them are disabled, which is the default, a shared no-op trace is used,
+ * so nothing is allocated and no string is built.
+ * </p>
+ */
+public class QueryTrace {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueryTrace.class);
+
+    // 单位是毫秒，默认关闭，否则每个语句都要创建一个QueryTrace来记录开始时间
+    private static volatile long slowQueryThreshold = Long.getLong("lealone.orm.slow.query.threshold", -1);
+    private static volatile double sampleRate = Double
+            .parseDouble(System.getProperty("lealone.orm.trace.sample.rate", "0"));
+
+    private static final AtomicLong slowQueryCount = new AtomicLong();
+    private static final AtomicLong sampledQueryCount = new AtomicLong();
+
+    private static final QueryTrace NONE = new QueryTrace(null, null) {
+        @Override
+        void prepared() {
+        }
+
+        @Override
+        void executed() {
+        }
+
+        @Override
+        void end(StatementBase statement, List<Parameter> parameters, int rowCount) {
+        }
+    };
+
+    public static long getSlowQueryThreshold() {
+        return slowQueryThreshold;
+    }
+
+    /**
+     * Set the slow query threshold in milliseconds, a negative value disables the slow query log.
+     */
+    public static void setSlowQueryThreshold(long slowQueryThreshold) {
+        QueryTrace.slowQueryThreshold = slowQueryThreshold;
+    }
+
+    public static double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Set the probability that a normal statement is logged, 0 disables the sampling.
+     */
+    public static void setSampleRate(double sampleRate) {
+        QueryTrace.sampleRate = sampleRate;
+    }
+
+    public static long getSlowQueryCount() {
+        return slowQueryCount.get();
+    }
+
+    public static long getSampledQueryCount() {
+        return sampledQueryCount.get();
+    }
+
+    /**
+     * Start tracing the operation of the model, it must be called before the statement is prepared.
+     */
+    static QueryTrace begin(String operation, Model<?> model) {
+        boolean metrics = QueryMetrics.isEnabled();
+        if (slowQueryThreshold < 0 && sampleRate <= 0 && !metrics)
+            return NONE;
+        // 只有统计查询指标时才需要查询形状，语句的key确定后再取
+        return new QueryTrace(operation, metrics ? model : null);
+    }
+
+    private final String operation;
+    private final Class<?> modelClass;
+    private final long startTime;
+    private Model<?> model;
+    private String shape;
+    private long prepareEndTime;
+    private long executeEndTime;
+
+    private QueryTrace(String operation, Model<?> model) {
+        this.operation = operation;
+        this.model = model;
+        this.modelClass = model == null ? null : model.getClass();
+        this.startTime = operation == null ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Resolve the query shape by the key of the cached statement, the key is null if the statement is not cached.
+     * A query must call it before the statement is prepared.
+     */
+    void shape(String statementOperation, String key) {
+        if (model != null) {
+            shape = model.getQueryShape(statementOperation, key);
+            model = null;
+        }
+    }
+
+    void prepared() {
+        prepareEndTime = System.nanoTime();
+    }
+
+    void executed() {
+        executeEndTime = System.nanoTime();
+    }
+
+    /**
+     * Finish the trace, the row count is -1 if it is unknown.
+     */
+    void end(StatementBase statement, List<Parameter> parameters, int rowCount) {
+        long endTime = System.nanoTime();
+        if (modelClass != null) {
+            shape(operation, null);
+            long prepareEnd = getPrepareEndTime();
+            long executeEnd = getExecuteEndTime(endTime);
+            QueryMetrics.record(modelClass, operation, shape, prepareEnd - startTime, executeEnd - prepareEnd,
+                    endTime - executeEnd, rowCount);
+        }
+        long threshold = slowQueryThreshold;
+        boolean slow = threshold >= 0 && endTime - startTime >= TimeUnit.MILLISECONDS.toNanos(threshold);
+        if (slow) {
+            slowQueryCount.incrementAndGet();
+            logger.warn(toString("slow query", endTime, statement, parameters, rowCount));
+        } else {
+            double rate = sampleRate;
+            if (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate) {
+                sampledQueryCount.incrementAndGet();
+                logger.info(toString("sampled query", endTime, statement, parameters, rowCount));
+            }
+        }
+    }
+
+    private String toString(String type, long endTime, StatementBase statement, List<Parameter> parameters,
+            int rowCount) {
+        long prepareEnd = getPrepareEndTime();
+        long executeEnd = getExecuteEndTime(endTime);
+        StringBuilder buff = new StringBuilder(type);
+        buff.append(": ").append(operation).append(", total: ").append(toMicros(endTime - startTime))
+                .append("us, prepare: ").append(toMicros(prepareEnd - startTime)).append("us, execute: ")
+                .append(toMicros(executeEnd - prepareEnd)).append("us, deserialize: ")
+                .append(toMicros(endTime - executeEnd)).append("us");
+        if (rowCount >= 0)
+            buff.append(", rows: ").append(rowCount);
+        buff.append(", sql: ").append(statement.getPlanSQL());
+        if (parameters != null && !parameters.isEmpty()) {
+            buff.append(", params: {");
+            for (int i = 0, size = parameters.size(); i < size; i++) {
+                if (i > 0)
+                    buff.append(", ");
+                buff.append(i + 1).append(": ")
+                        .append(parameters.get(i).getValue(statement.getSession()).getTraceSQL());
+            }
+            buff.append('}');
+        }
+        return buff.toString();
+    }
+
+    // 没有单独的准备或执行阶段时，对应阶段的时间算作0
+    private long getPrepareEndTime() {
+        return prepareEndTime == 0 ? startTime : prepareEndTime;
+    }
+
+    private long getExecuteEndTime(long endTime) {
+        return executeEndTime == 0 ? endTime : executeEndTime;
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
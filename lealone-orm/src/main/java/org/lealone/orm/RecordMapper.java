@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.orm;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.lealone.common.exceptions.DbException;
+import org.lealone.db.result.Result;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueNull;
+
+/**
+ * Map the rows of a projection query to instances of a plain class.
+ * <p>
+ * A constructor with one parameter per selected column is used first, the arguments are passed in the order of
+ * the projection. Otherwise the no-arg constructor is used and the fields are assigned by the column names.
+ * </p>
+ */
+class RecordMapper<R> {
+
+    private final Constructor<R> constructor;
+    private final Class<?>[] types;
+    private final Field[] fields;
+
+    @SuppressWarnings("unchecked")
+    private RecordMapper(Class<R> recordClass, Result result, int columnCount) {
+        Constructor<R> c = null;
+        for (Constructor<?> ctor : recordClass.getDeclaredConstructors()) {
+            if (ctor.getParameterCount() == columnCount) {
+                c = (Constructor<R>) ctor;
+                break;
+            }
+        }
+        if (c != null) {
+            c.setAccessible(true);
+            constructor = c;
+            types = c.getParameterTypes();
+            fields = null;
+        } else {
+            constructor = (Constructor<R>) getDefaultConstructor(recordClass);
+            fields = new Field[columnCount];
+            types = new Class<?>[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                fields[i] = getField(recordClass, result.getColumnName(i));
+                types[i] = fields[i].getType();
+            }
+        }
+    }
+
+    private static Constructor<?> getDefaultConstructor(Class<?> recordClass) {
+        try {
+            Constructor<?> c = recordClass.getDeclaredConstructor();
+            c.setAccessible(true);
+            return c;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(recordClass.getName()
+                    + " needs a constructor with one parameter per selected property or a no-arg constructor");
+        }
+    }
+
+    // 字段名不区分大小写，数据库中的列名通常是大写的
+    private static Field getField(Class<?> recordClass, String columnName) {
+        for (Class<?> c = recordClass; c != Object.class; c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(f.getModifiers()) && f.getName().equalsIgnoreCase(columnName)) {
+                    f.setAccessible(true);
+                    return f;
+                }
+            }
+        }
+        throw new IllegalArgumentException("Field " + columnName + " not found in " + recordClass.getName());
+    }
+
+    private R map(Value[] row) throws ReflectiveOperationException {
+        int len = types.length;
+        if (fields == null) {
+            Object[] args = new Object[len];
+            for (int i = 0; i < len; i++)
+                args[i] = convert(row[i], types[i]);
+            return constructor.newInstance(args);
+        }
+        R r = constructor.newInstance();
+        for (int i = 0; i < len; i++) {
+            Object v = convert(row[i], types[i]);
+            if (v != null)
+                fields[i].set(r, v);
+        }
+        return r;
+    }
+
+    private static Object convert(Value v, Class<?> type) {
+        // 基本类型的参数和字段不能为null，使用默认值
+        if (v == ValueNull.INSTANCE)
+            return type.isPrimitive() ? Array.get(Array.newInstance(type, 1), 0) : null;
+        if (type == long.class || type == Long.class)
+            return v.getLong();
+        if (type == int.class || type == Integer.class)
+            return v.getInt();
+        if (type == double.class || type == Double.class)
+            return v.getDouble();
+        if (type == float.class || type == Float.class)
+            return v.getFloat();
+        if (type == short.class || type == Short.class)
+            return v.getShort();
+        if (type == byte.class || type == Byte.class)
+            return v.getByte();
+        if (type == boolean.class || type == Boolean.class)
+            return v.getBoolean();
+        if (type == String.class)
+            return v.getString();
+        return v.getObject();
+    }
+
+    // 没有指定字段时结果的最后一列是rowid，不需要映射
+    static <R> List<R> read(Result result, Class<R> recordClass, int columnCount) {
+        if (columnCount < 0)
+            columnCount = result.getVisibleColumnCount() - 1;
+        ArrayList<R> list = new ArrayList<>(Math.max(result.getRowCount(), 0));
+        RecordMapper<R> mapper = new RecordMapper<>(recordClass, result, columnCount);
+        try {
+            while (result.next())
+                list.add(mapper.map(result.currentRow()));
+        } catch (ReflectiveOperationException e) {
+            throw DbException.convert(e);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.orm;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lealone.common.exceptions.DbException;
+import org.lealone.common.logging.Logger;
+import org.lealone.common.logging.LoggerFactory;
+import org.lealone.db.ServerSession;
+import org.lealone.db.ServerSessionFactory;
+
+/**
+ * A thread-safe pool of the sessions used by the auto commit operations of the ORM, one pool per url.
+ * <p>
+ * At most lealone.orm.session.pool.size idle sessions are kept, the others are closed when they are returned.
+ * At most lealone.orm.session.pool.max.active sessions are borrowed at the same time, the other callers wait
+ * up to lealone.orm.session.pool.max.wait milliseconds. The sessions owned by the cached statements are detached
+ * from the pool, they are counted by {@link #getDetachedSize()} and all of them together are bounded by
+ * lealone.orm.statement.pool.max.sessions, see {@link StatementPool}.
+ * </p>
+ */
+public class SessionPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(SessionPool.class);
+
+    private static final int MAX_IDLE_SIZE = Integer.getInteger("lealone.orm.session.pool.size", 64);
+    private static final int MAX_ACTIVE_SIZE = Integer.getInteger("lealone.orm.session.pool.max.active", 256);
+    // 单位是毫秒
+    private static final long MAX_WAIT = Long.getLong("lealone.orm.session.pool.max.wait", 10000);
+    private static final ConcurrentHashMap<String, SessionPool> pools = new ConcurrentHashMap<>();
+
+    public static SessionPool getSessionPool(String url) {
+        SessionPool pool = pools.get(url);
+        if (pool == null) {
+            pool = new SessionPool(url);
+            SessionPool old = pools.putIfAbsent(url, pool);
+            if (old != null)
+                pool = old;
+        }
+        return pool;
+    }
+
+    static Collection<SessionPool> getSessionPools() {
+        return pools.values();
+    }
+
+    private final String url;
+    private final ConcurrentLinkedQueue<ServerSession> idleSessions = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleSize = new AtomicInteger();
+    private final AtomicInteger activeSize = new AtomicInteger();
+    private final AtomicInteger detachedSize = new AtomicInteger();
+    private final Semaphore activePermits = new Semaphore(MAX_ACTIVE_SIZE);
+    // 只用来创建表达式和查找表，不执行语句，所以可以被多个线程共用
+    private volatile ServerSession metaSession;
+
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong borrowedCount = new AtomicLong();
+    private final AtomicLong closedCount = new AtomicLong();
+
+    private SessionPool(String url) {
+        this.url = url;
+    }
+
+    ServerSession borrowSession() {
+        try {
+            if (!activePermits.tryAcquire(MAX_WAIT, TimeUnit.MILLISECONDS))
+                throw DbException.convert(new TimeoutException(
+                        "No session is available after " + MAX_WAIT + " ms, active sessions: " + activeSize.get()));
+        } catch (InterruptedException e) {
+            throw DbException.convert(e);
+        }
+        ServerSession session = idleSessions.poll();
+        if (session != null) {
+            idleSize.decrementAndGet();
+        } else {
+            try {
+                session = ServerSessionFactory.getInstance().createSession(url);
+            } catch (RuntimeException e) {
+                activePermits.release();
+                throw e;
+            }
+            createdCount.incrementAndGet();
+        }
+        borrowedCount.incrementAndGet();
+        activeSize.incrementAndGet();
+        return session;
+    }
+
+    void returnSession(ServerSession session) {
+        activeSize.decrementAndGet();
+        activePermits.release();
+        // 只有处于自动提交模式的session才能被复用，
+        // 自动提交模式下的写操作都已提交，这里只是结束可能存在的只读事务
+        if (session.isAutoCommit() && idleSize.incrementAndGet() <= MAX_IDLE_SIZE) {
+            try {
+                session.rollback();
+                idleSessions.add(session);
+                return;
+            } catch (Throwable t) {
+                logger.warn("Failed to reset session", t);
+            }
+            idleSize.decrementAndGet();
+        } else if (session.isAutoCommit()) {
+            idleSize.decrementAndGet();
+        }
+        closedCount.incrementAndGet();
+        closeSession(session);
+    }
+
+    /**
+     * The session will not come back, for example it is owned by a cached statement now.
+     */
+    void detachSession(ServerSession session) {
+        activeSize.decrementAndGet();
+        activePermits.release();
+        detachedSize.incrementAndGet();
+    }
+
+    /**
+     * Close a session detached by {@link #detachSession}, when its cached statement is discarded or evicted.
+     */
+    void closeDetachedSession(ServerSession session) {
+        detachedSize.decrementAndGet();
+        closedCount.incrementAndGet();
+        closeSession(session);
+    }
+
+    ServerSession getMetaSession() {
+        ServerSession session = metaSession;
+        if (session == null) {
+            synchronized (this) {
+                session = metaSession;
+                if (session == null) {
+                    session = ServerSessionFactory.getInstance().createSession(url);
+                    metaSession = session;
+                }
+            }
+        }
+        return session;
+    }
+
+    static void closeSession(ServerSession session) {
+        try {
+            session.close();
+        } catch (Throwable t) {
+            logger.warn("Failed to close session", t);
+        }
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public int getIdleSize() {
+        return idleSize.get();
+    }
+
+    public int getActiveSize() {
+        return activeSize.get();
+    }
+
+    /**
+     * Return the number of the sessions owned by the cached statements.
+     */
+    public int getDetachedSize() {
+        return detachedSize.get();
+    }
+
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    public long getBorrowedCount() {
+        return borrowedCount.get();
+    }
+
+    public long getClosedCount() {
+        return closedCount.get();
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.orm;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lealone.db.ServerSession;
+import org.lealone.sql.StatementBase;
+import org.lealone.sql.expression.Parameter;
+
+/**
+ * A pool of idle prepared statements keyed by the shape of the statement, the base of {@link QueryCache}
+ * and {@link DmlCache}.
+ * <p>
+ * Each pooled statement owns a session detached from its {@link SessionPool} and is used by one caller at a time,
+ * the keys are evicted in LRU order. A pooled statement is discarded when it needs to be recompiled after a DDL.
+ * </p>
+ * <p>
+ * The sessions owned by the statements of all the pools are bounded by lealone.orm.statement.pool.max.sessions
+ * (default 256), when there are more the least recently used idle statements of the pools are evicted in turn
+ * and their sessions are closed.
+ * </p>
+ */
+public abstract class StatementPool<S extends StatementPool.PooledStatement> {
+
+    // 同一个key可能被多个线程同时执行，每个线程需要独占一个语句，所以每个key最多缓存这么多个空闲的语句
+    private static final int MAX_IDLE_STATEMENTS_PER_KEY = 16;
+    private static final int MAX_SESSIONS = Integer.getInteger("lealone.orm.statement.pool.max.sessions", 256);
+
+    // 所有语句池中的语句独占的session个数，包括正在执行的语句
+    private static final AtomicInteger sessionCount = new AtomicInteger();
+    private static final CopyOnWriteArrayList<StatementPool<?>> pools = new CopyOnWriteArrayList<>();
+    private static final AtomicInteger nextPool = new AtomicInteger();
+
+    static class PooledStatement {
+        // 语句独占session时是session原来所属的池，否则为null
+        final SessionPool sessionPool;
+        final ServerSession session;
+        final StatementBase statement;
+        final ArrayList<Parameter> parameters;
+
+        PooledStatement(SessionPool sessionPool, ServerSession session, StatementBase statement,
+                ArrayList<Parameter> parameters) {
+            this.sessionPool = sessionPool;
+            this.session = session;
+            this.statement = statement;
+            this.parameters = parameters;
+            if (sessionPool != null && sessionCount.incrementAndGet() > MAX_SESSIONS)
+                evictIdleStatements();
+        }
+
+        private boolean bind(ArrayList<Parameter> newParameters) {
+            int size = newParameters == null ? 0 : newParameters.size();
+            int oldSize = parameters == null ? 0 : parameters.size();
+            if (size != oldSize)
+                return false;
+            for (int i = 0; i < size; i++) {
+                parameters.get(i).setValue(newParameters.get(i).getValue(session));
+            }
+            return true;
+        }
+
+        void close() {
+            if (sessionPool != null) {
+                sessionCount.decrementAndGet();
+                sessionPool.closeDetachedSession(session);
+            } else {
+                SessionPool.closeSession(session);
+            }
+        }
+    }
+
+    /**
+     * Return the number of the sessions owned by the statements of all the pools.
+     */
+    public static int getSessionCount() {
+        return sessionCount.get();
+    }
+
+    // 轮流淘汰各个池中最久没用的空闲语句，直到不超过上限，或者所有的语句都在执行
+    private static void evictIdleStatements() {
+        int misses = 0;
+        while (sessionCount.get() > MAX_SESSIONS) {
+            int size = pools.size();
+            if (misses >= size)
+                break;
+            StatementPool<?> pool = pools.get(Math.floorMod(nextPool.getAndIncrement(), size));
+            if (pool.evictEldest())
+                misses = 0;
+            else
+                misses++;
+        }
+    }
+
+    private final int maxSize;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final LinkedHashMap<String, ArrayList<S>> idleStatements;
+
+    StatementPool(int maxSize) {
+        this.maxSize = maxSize;
+        idleStatements = new LinkedHashMap<String, ArrayList<S>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ArrayList<S>> eldest) {
+                if (size() > StatementPool.this.maxSize) {
+                    for (S s : eldest.getValue())
+                        s.close();
+                    return true;
+                }
+                return false;
+            }
+        };
+        pools.add(this);
+    }
+
+    // 淘汰最久没用的key中的一个空闲语句，没有空闲语句时返回false
+    private boolean evictEldest() {
+        S s = null;
+        synchronized (idleStatements) {
+            Iterator<ArrayList<S>> it = idleStatements.values().iterator();
+            while (it.hasNext()) {
+                ArrayList<S> list = it.next();
+                if (!list.isEmpty()) {
+                    s = list.remove(list.size() - 1);
+                    if (list.isEmpty())
+                        it.remove();
+                    break;
+                }
+            }
+        }
+        if (s == null)
+            return false;
+        evictions.incrementAndGet();
+        s.close();
+        return true;
+    }
+
+    /**
+     * 取出一个空闲的语句并绑定新的参数值，没有可用的语句时返回null
+     */
+    S poll(String key, ArrayList<Parameter> parameters) {
+        S s = null;
+        synchronized (idleStatements) {
+            ArrayList<S> list = idleStatements.get(key);
+            if (list != null && !list.isEmpty()) {
+                s = list.remove(list.size() - 1);
+            }
+        }
+        // 执行过DDL后需要重新编译
+        if (s != null && s.statement.needRecompile()) {
+            invalidations.incrementAndGet();
+            s.close();
+            s = null;
+        } else if (s != null && !s.bind(parameters)) {
+            s.close();
+            s = null;
+        }
+        if (s != null)
+            hits.incrementAndGet();
+        else
+            misses.incrementAndGet();
+        return s;
+    }
+
+    void offer(String key, S s) {
+        if (sessionCount.get() > MAX_SESSIONS) {
+            // 超过上限时不再放回池中
+            evictions.incrementAndGet();
+            s.close();
+            return;
+        }
+        synchronized (idleStatements) {
+            ArrayList<S> list = idleStatements.get(key);
+            if (list == null) {
+                list = new ArrayList<>(1);
+                idleStatements.put(key, list);
+            }
+            if (list.size() < MAX_IDLE_STATEMENTS_PER_KEY) {
+                list.add(s);
+                return;
+            }
+        }
+        s.close();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Return the number of pooled statements discarded because of a DDL.
+     */
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    /**
+     * Return the number of pooled statements closed because of the limit of lealone.orm.statement.pool.max.sessions.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Return the number of keys.
+     */
+    public int size() {
+        synchronized (idleStatements) {
+            return idleStatements.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (idleStatements) {
+            for (ArrayList<S> list : idleStatements.values()) {
+                for (S s : list)
+                    s.close();
+            }
+            idleStatements.clear();
+        }
+    }
+}
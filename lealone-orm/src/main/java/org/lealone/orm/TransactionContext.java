@@ -0,0 +1,296 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.orm;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.lealone.common.logging.Logger;
+import org.lealone.common.logging.LoggerFactory;
+import org.lealone.db.ServerSession;
+
+/**
+ * The context of a transaction started by {@link Model#beginTransaction()}.
+ * <p>
+ * A new transaction is bound to the thread that starts it, the ORM operations without a transaction id
+ * use the innermost transaction bound to the current thread. To continue the transaction in another thread
+ * or in an async continuation, bind it explicitly with {@link #attach()} or one of the wrap methods,
+ * or pass the transaction id to the operations.
+ * </p>
+ * <p>
+ * A transaction that is not used for lealone.orm.transaction.idle.timeout milliseconds (default 600000,
+ * 0 to disable) expires, the reaper thread rolls it back and closes its session. Each ORM operation holds
+ * the transaction while it uses the session, a transaction that is held is skipped by the reaper,
+ * so a statement that is still running in the transaction is never interrupted.
+ * </p>
+ */
+public class TransactionContext {
+
+    private static final Logger logger = LoggerFactory.getLogger(TransactionContext.class);
+
+    // 单位是毫秒
+    private static volatile long idleTimeout = Long.getLong("lealone.orm.transaction.idle.timeout", 600000);
+
+    private static final ConcurrentHashMap<Long, TransactionContext> contexts = new ConcurrentHashMap<>();
+    // 每个线程绑定的事务，最后一个是当前事务
+    private static final ThreadLocal<ArrayList<TransactionContext>> boundContexts = ThreadLocal
+            .withInitial(() -> new ArrayList<>(1));
+
+    private static ScheduledExecutorService reaper;
+    private static final AtomicLong reapedCount = new AtomicLong();
+
+    public static long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Set the idle timeout in milliseconds, 0 disables the reaping.
+     */
+    public static synchronized void setIdleTimeout(long idleTimeout) {
+        TransactionContext.idleTimeout = idleTimeout;
+        // 按新的超时时间调整检查间隔
+        if (reaper != null) {
+            reaper.shutdown();
+            reaper = null;
+            if (!contexts.isEmpty())
+                startReaper();
+        }
+    }
+
+    public static long getReapedCount() {
+        return reapedCount.get();
+    }
+
+    static int getActiveCount() {
+        return contexts.size();
+    }
+
+    /**
+     * Return the innermost active transaction bound to the current thread, or null if there is none.
+     */
+    public static TransactionContext current() {
+        ArrayList<TransactionContext> list = boundContexts.get();
+        // 在其他线程中或以事务id结束的事务在这里才出栈
+        for (int i = list.size() - 1; i >= 0; i--) {
+            TransactionContext context = list.get(i);
+            if (!context.closed.get()) {
+                context.touch();
+                return context;
+            }
+            list.remove(i);
+        }
+        return null;
+    }
+
+    /**
+     * Return the active transaction with the given id, or null if it has ended.
+     */
+    public static TransactionContext get(long tid) {
+        TransactionContext context = contexts.get(tid);
+        if (context == null || context.closed.get())
+            return null;
+        context.touch();
+        return context;
+    }
+
+    static TransactionContext begin(ServerSession session) {
+        TransactionContext context = new TransactionContext(session);
+        contexts.put(context.tid, context);
+        boundContexts.get().add(context);
+        startReaper();
+        return context;
+    }
+
+    private static synchronized void startReaper() {
+        if (reaper != null || idleTimeout <= 0)
+            return;
+        reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ORMTransactionReaper");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = Math.max(100, Math.min(idleTimeout / 4, 60000));
+        reaper.scheduleWithFixedDelay(TransactionContext::reap, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    // 正在被使用的事务不回收，没有被使用的事务先把使用计数改成-1，之后任何操作都不能再使用它，然后在回收线程中回滚
+    private static void reap() {
+        long timeout = idleTimeout;
+        if (timeout <= 0)
+            return;
+        long now = System.currentTimeMillis();
+        for (TransactionContext context : contexts.values()) {
+            long idle = now - context.lastAccessTime;
+            if (idle > timeout && context.useCount.compareAndSet(0, -1)) {
+                context.expired = true;
+                try {
+                    if (context.end(false)) {
+                        reapedCount.incrementAndGet();
+                        logger.warn("Transaction " + context.tid + " was rolled back after being idle for " + idle
+                                + "ms");
+                    }
+                } catch (Throwable t) {
+                    // 不能让异常终止回收线程
+                    logger.error("Failed to roll back the expired transaction " + context.tid, t);
+                }
+            }
+        }
+    }
+
+    private final long tid;
+    private final ServerSession session;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // 正在使用事务session的操作个数，-1表示事务已经被回收
+    private final AtomicInteger useCount = new AtomicInteger();
+    private volatile boolean expired;
+    private volatile long lastAccessTime = System.currentTimeMillis();
+
+    private TransactionContext(ServerSession session) {
+        this.session = session;
+        this.tid = session.getTransaction().getTransactionId();
+    }
+
+    public long getTransactionId() {
+        return tid;
+    }
+
+    public boolean isActive() {
+        return !closed.get();
+    }
+
+    /**
+     * Return true if the transaction was rolled back by the reaper because it was idle for too long.
+     */
+    public boolean isExpired() {
+        return expired;
+    }
+
+    ServerSession getSession() {
+        return session;
+    }
+
+    private void touch() {
+        lastAccessTime = System.currentTimeMillis();
+    }
+
+    // 操作开始使用事务的session前调用，返回false表示事务已经结束或被回收
+    boolean acquire() {
+        while (true) {
+            int count = useCount.get();
+            if (count < 0 || closed.get())
+                return false;
+            if (useCount.compareAndSet(count, count + 1)) {
+                touch();
+                return true;
+            }
+        }
+    }
+
+    // 操作结束后调用，可能在异步操作的回调线程中执行
+    void release() {
+        touch();
+        useCount.decrementAndGet();
+    }
+
+    /**
+     * Commit or roll back the transaction and close its session, return false if it has already ended.
+     */
+    boolean end(boolean commit) {
+        if (!closed.compareAndSet(false, true))
+            return false;
+        contexts.remove(tid);
+        try {
+            if (commit)
+                session.commit();
+            else
+                session.rollback();
+        } finally {
+            Model.clearPendingEntityCaches(tid);
+            SessionPool.closeSession(session);
+            // 当前线程的绑定马上解除，其他线程的绑定在下次调用current()时解除
+            ArrayList<TransactionContext> list = boundContexts.get();
+            if (!list.isEmpty() && list.get(list.size() - 1) == this)
+                list.remove(list.size() - 1);
+        }
+        return true;
+    }
+
+    /**
+     * Bind the transaction to the current thread until the returned scope is closed.
+     */
+    public Scope attach() {
+        ArrayList<TransactionContext> list = boundContexts.get();
+        list.add(this);
+        touch();
+        return new Scope(list, this);
+    }
+
+    public Runnable wrap(Runnable task) {
+        return () -> {
+            try (Scope s = attach()) {
+                task.run();
+            }
+        };
+    }
+
+    public <R> Supplier<R> wrap(Supplier<R> supplier) {
+        return () -> {
+            try (Scope s = attach()) {
+                return supplier.get();
+            }
+        };
+    }
+
+    public <A, R> Function<A, R> wrap(Function<A, R> function) {
+        return a -> {
+            try (Scope s = attach()) {
+                return function.apply(a);
+            }
+        };
+    }
+
+    /**
+     * The binding of a transaction to a thread, it must be closed in the same thread.
+     */
+    public static class Scope implements AutoCloseable {
+
+        private final ArrayList<TransactionContext> list;
+        private final TransactionContext context;
+
+        private Scope(ArrayList<TransactionContext> list, TransactionContext context) {
+            this.list = list;
+            this.context = context;
+        }
+
+        @Override
+        public void close() {
+            // 事务可能已经结束并出栈了
+            int index = list.lastIndexOf(context);
+            if (index >= 0)
+                list.remove(index);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.orm;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueNull;
+
+/**
+ * One row of findTuples, the values are in the order of the select(...) items.
+ * <p>
+ * The numeric getters return 0 for null values, use isNull to tell them apart.
+ * </p>
+ */
+public class Tuple {
+
+    private final SelectItem[] items;
+    private final Value[] row;
+
+    Tuple(SelectItem[] items, Value[] row) {
+        this.items = items;
+        this.row = row;
+    }
+
+    public int size() {
+        return items.length;
+    }
+
+    public int indexOf(SelectItem item) {
+        for (int i = 0; i < items.length; i++) {
+            if (items[i].equals(item))
+                return i;
+        }
+        throw new IllegalArgumentException("Item not selected: " + item.getName());
+    }
+
+    public boolean isNull(int index) {
+        return row[index] == ValueNull.INSTANCE;
+    }
+
+    public Object get(int index) {
+        return row[index].getObject();
+    }
+
+    public long getLong(int index) {
+        return isNull(index) ? 0 : row[index].getLong();
+    }
+
+    public int getInt(int index) {
+        return isNull(index) ? 0 : row[index].getInt();
+    }
+
+    public double getDouble(int index) {
+        return isNull(index) ? 0 : row[index].getDouble();
+    }
+
+    public BigDecimal getBigDecimal(int index) {
+        return row[index].getBigDecimal();
+    }
+
+    public String getString(int index) {
+        return row[index].getString();
+    }
+
+    public boolean isNull(SelectItem item) {
+        return isNull(indexOf(item));
+    }
+
+    public Object get(SelectItem item) {
+        return get(indexOf(item));
+    }
+
+    public long getLong(SelectItem item) {
+        return getLong(indexOf(item));
+    }
+
+    public int getInt(SelectItem item) {
+        return getInt(indexOf(item));
+    }
+
+    public double getDouble(SelectItem item) {
+        return getDouble(indexOf(item));
+    }
+
+    public BigDecimal getBigDecimal(SelectItem item) {
+        return getBigDecimal(indexOf(item));
+    }
+
+    public String getString(SelectItem item) {
+        return getString(indexOf(item));
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(Arrays.copyOf(row, items.length));
+    }
+}
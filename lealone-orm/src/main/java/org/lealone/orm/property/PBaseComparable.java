@@ -17,6 +17,7 @@
  */
 package org.lealone.orm.property;
 
+import org.lealone.orm.AggregateProperty;
 import org.lealone.orm.Model;
 
 /**
@@ -42,6 +43,20 @@ public abstract class PBaseComparable<R, T extends Comparable> extends PBaseValu
         return this.<PBaseComparable<R, T>> getModelProperty(model);
     }
 
+    /**
+     * Minimum value, for select(...).
+     */
+    public AggregateProperty<R> min() {
+        return aggregate(AggregateProperty.MIN, false);
+    }
+
+    /**
+     * Maximum value, for select(...).
+     */
+    public AggregateProperty<R> max() {
+        return aggregate(AggregateProperty.MAX, false);
+    }
+
     // ---- range comparisons -------
     /**
      * Greater than.
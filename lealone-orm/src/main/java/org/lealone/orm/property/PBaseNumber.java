@@ -17,6 +17,9 @@
  */
 package org.lealone.orm.property;
 
+import org.lealone.db.value.ValueDouble;
+import org.lealone.db.value.ValueLong;
+import org.lealone.orm.AggregateProperty;
 import org.lealone.orm.Model;
 
 /**
@@ -42,6 +45,55 @@ public abstract class PBaseNumber<R, T extends Comparable> extends PBaseComparab
         return this.<PBaseNumber<R, T>> getModelProperty(model);
     }
 
+    /**
+     * Add delta to the current value in the database when the update is executed, such as stock.add(-1).
+     * <p>
+     * The value of the model is not changed, conditions like stock.ge(1) can be added to the where clause.
+     * </p>
+     *
+     * @param delta the value to add, it can be negative
+     * @return the root model bean instance
+     */
+    public R add(long delta) {
+        Model<?> model = getModel();
+        if (model != root) {
+            return P(model).add(delta);
+        }
+        addDelta(ValueLong.get(delta));
+        return root;
+    }
+
+    public R add(double delta) {
+        Model<?> model = getModel();
+        if (model != root) {
+            return P(model).add(delta);
+        }
+        addDelta(ValueDouble.get(delta));
+        return root;
+    }
+
+    public R subtract(long delta) {
+        return add(-delta);
+    }
+
+    public R subtract(double delta) {
+        return add(-delta);
+    }
+
+    /**
+     * Sum of the values, for select(...).
+     */
+    public AggregateProperty<R> sum() {
+        return aggregate(AggregateProperty.SUM, false);
+    }
+
+    /**
+     * Average of the values, for select(...).
+     */
+    public AggregateProperty<R> avg() {
+        return aggregate(AggregateProperty.AVG, false);
+    }
+
     // Additional int versions -- seems the right thing to do
 
     /**
@@ -19,7 +19,6 @@ package org.lealone.orm.property;
 
 import java.io.IOException;
 import java.math.BigDecimal;
-import java.util.HashMap;
 
 import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueDecimal;
@@ -35,8 +34,6 @@ import com.fasterxml.jackson.databind.node.DecimalNode;
  */
 public class PBigDecimal<R> extends PBaseNumber<R, BigDecimal> {
 
-    private BigDecimal value;
-
     /**
      * Construct with a property name and root instance.
      *
@@ -56,9 +53,9 @@ public class PBigDecimal<R> extends PBaseNumber<R, BigDecimal> {
         if (model != root) {
             return P(model).set(value);
         }
-        if (!areEqual(this.value, value)) {
-            this.value = value;
-            expr().set(name, ValueDecimal.get(value));
+        if (!areEqual(value(), value)) {
+            setObjectValue(value);
+            markDirty();
         }
         return root;
     }
@@ -73,12 +70,12 @@ public class PBigDecimal<R> extends PBaseNumber<R, BigDecimal> {
         if (model != root) {
             return P(model).get();
         }
-        return value;
+        return value();
     }
 
     @Override
     public R serialize(JsonGenerator jgen) throws IOException {
-        jgen.writeNumberField(getName(), value);
+        jgen.writeNumberField(getName(), value());
         return root;
     }
 
@@ -93,11 +90,17 @@ public class PBigDecimal<R> extends PBaseNumber<R, BigDecimal> {
     }
 
     @Override
-    public R deserialize(HashMap<String, Value> map) {
-        Value v = map.get(getFullName());
-        if (v != null) {
-            value = v.getBigDecimal();
-        }
+    public R deserialize(Value v) {
+        setObjectValue(v.getBigDecimal());
         return root;
     }
+
+    private BigDecimal value() {
+        return (BigDecimal) getObjectValue();
+    }
+
+    @Override
+    protected Value toValue() {
+        return ValueDecimal.get(value());
+    }
 }
@@ -18,7 +18,6 @@
 package org.lealone.orm.property;
 
 import java.io.IOException;
-import java.util.HashMap;
 
 import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueBoolean;
@@ -35,8 +34,6 @@ import com.fasterxml.jackson.databind.node.BooleanNode;
  */
 public class PBoolean<R> extends PBaseValueEqual<R, Boolean> {
 
-    private boolean value;
-
     /**
      * Construct with a property name and root instance.
      *
@@ -116,9 +113,9 @@ public class PBoolean<R> extends PBaseValueEqual<R, Boolean> {
         if (model != root) {
             return P(model).set(value);
         }
-        if (!areEqual(this.value, value)) {
-            this.value = value;
-            expr().set(name, ValueBoolean.get(value));
+        if (!areEqual(value(), value) || isNullValue()) {
+            setPrimitiveValue(value ? 1 : 0);
+            markDirty();
         }
         return root;
     }
@@ -133,12 +130,12 @@ public class PBoolean<R> extends PBaseValueEqual<R, Boolean> {
         if (model != root) {
             return P(model).get();
         }
-        return value;
+        return value();
     }
 
     @Override
     public R serialize(JsonGenerator jgen) throws IOException {
-        jgen.writeBooleanField(getName(), value);
+        jgen.writeBooleanField(getName(), value());
         return root;
     }
 
@@ -153,11 +150,22 @@ public class PBoolean<R> extends PBaseValueEqual<R, Boolean> {
     }
 
     @Override
-    public R deserialize(HashMap<String, Value> map) {
-        Value v = map.get(getFullName());
-        if (v != null) {
-            value = v.getBoolean();
-        }
+    public R deserialize(Value v) {
+        setPrimitiveValue(v.getBoolean() ? 1 : 0);
         return root;
     }
+
+    private boolean value() {
+        return getPrimitiveValue() != 0;
+    }
+
+    @Override
+    protected boolean isPrimitive() {
+        return true;
+    }
+
+    @Override
+    protected Value toValue() {
+        return ValueBoolean.get(value());
+    }
 }
@@ -19,7 +19,6 @@ package org.lealone.orm.property;
 
 import java.io.IOException;
 import java.sql.Date;
-import java.util.HashMap;
 
 import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueDate;
@@ -36,8 +35,6 @@ import com.fasterxml.jackson.databind.node.NumericNode;
  */
 public class PDate<R> extends PBaseDate<R, Date> {
 
-    private Date value;
-
     /**
      * Construct with a property name and root instance.
      *
@@ -57,9 +54,9 @@ public class PDate<R> extends PBaseDate<R, Date> {
         if (model != root) {
             return P(model).set(value);
         }
-        if (!areEqual(this.value, value)) {
-            this.value = value;
-            expr().set(name, ValueDate.get(value));
+        if (!areEqual(value(), value)) {
+            setObjectValue(value);
+            markDirty();
         }
         return root;
     }
@@ -74,12 +71,12 @@ public class PDate<R> extends PBaseDate<R, Date> {
         if (model != root) {
             return P(model).get();
         }
-        return value;
+        return value();
     }
 
     @Override
     public R serialize(JsonGenerator jgen) throws IOException {
-        jgen.writeNumberField(getName(), value.getTime());
+        jgen.writeNumberField(getName(), value().getTime());
         return root;
     }
 
@@ -95,11 +92,17 @@ public class PDate<R> extends PBaseDate<R, Date> {
     }
 
     @Override
-    public R deserialize(HashMap<String, Value> map) {
-        Value v = map.get(getFullName());
-        if (v != null) {
-            value = v.getDate();
-        }
+    public R deserialize(Value v) {
+        setObjectValue(v.getDate());
         return root;
     }
+
+    private Date value() {
+        return (Date) getObjectValue();
+    }
+
+    @Override
+    protected Value toValue() {
+        return ValueDate.get(value());
+    }
 }
@@ -17,28 +17,38 @@
  */
 package org.lealone.orm.property;
 
+import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueJavaObject;
 import org.lealone.orm.ModelProperty;
 
 public class PObject<R> extends ModelProperty<R> {
 
-    private Object value;
-
     public PObject(String name, R root) {
         super(name, root);
     }
 
     @Override
     public R set(Object value) {
-        if (!areEqual(this.value, value)) {
-            this.value = value;
-            expr().set(name, ValueJavaObject.getNoCopy(value, null));
+        if (!areEqual(getObjectValue(), value)) {
+            setObjectValue(value);
+            markDirty();
         }
         return root;
     }
 
     public final Object get() {
-        return value;
+        return getObjectValue();
+    }
+
+    @Override
+    public R deserialize(Value v) {
+        setObjectValue(v.getObject());
+        return root;
+    }
+
+    @Override
+    protected Value toValue() {
+        return ValueJavaObject.getNoCopy(getObjectValue(), null);
     }
 
 }
@@ -18,7 +18,6 @@
 package org.lealone.orm.property;
 
 import java.io.IOException;
-import java.util.HashMap;
 
 import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueShort;
@@ -35,8 +34,6 @@ import com.fasterxml.jackson.databind.node.NumericNode;
  */
 public class PShort<R> extends PBaseNumber<R, Short> {
 
-    private short value;
-
     /**
      * Construct with a property name and root instance.
      *
@@ -56,9 +53,9 @@ public class PShort<R> extends PBaseNumber<R, Short> {
         if (model != root) {
             return P(model).set(value);
         }
-        if (!areEqual(this.value, value)) {
-            this.value = value;
-            expr().set(name, ValueShort.get(value));
+        if (!areEqual(value(), value) || isNullValue()) {
+            setPrimitiveValue(value);
+            markDirty();
         }
         return root;
     }
@@ -73,12 +70,12 @@ public class PShort<R> extends PBaseNumber<R, Short> {
         if (model != root) {
             return P(model).get();
         }
-        return value;
+        return value();
     }
 
     @Override
     public R serialize(JsonGenerator jgen) throws IOException {
-        jgen.writeNumberField(getName(), value);
+        jgen.writeNumberField(getName(), value());
         return root;
     }
 
@@ -93,11 +90,22 @@ public class PShort<R> extends PBaseNumber<R, Short> {
     }
 
     @Override
-    public R deserialize(HashMap<String, Value> map) {
-        Value v = map.get(getFullName());
-        if (v != null) {
-            value = v.getShort();
-        }
+    public R deserialize(Value v) {
+        setPrimitiveValue(v.getShort());
         return root;
     }
+
+    private short value() {
+        return (short) getPrimitiveValue();
+    }
+
+    @Override
+    protected boolean isPrimitive() {
+        return true;
+    }
+
+    @Override
+    protected Value toValue() {
+        return ValueShort.get(value());
+    }
 }
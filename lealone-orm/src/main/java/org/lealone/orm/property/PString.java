@@ -18,7 +18,6 @@
 package org.lealone.orm.property;
 
 import java.io.IOException;
-import java.util.HashMap;
 
 import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueString;
@@ -34,8 +33,6 @@ import com.fasterxml.jackson.databind.JsonNode;
  */
 public class PString<R> extends PBaseComparable<R, String> {
 
-    private String value;
-
     /**
      * Construct with a property name and root instance.
      *
@@ -222,9 +219,9 @@ public class PString<R> extends PBaseComparable<R, String> {
         if (model != root) {
             return P(model).set(value);
         }
-        if (!areEqual(this.value, value)) {
-            this.value = value;
-            expr().set(name, ValueString.get(value));
+        if (!areEqual(value(), value)) {
+            setObjectValue(value);
+            markDirty();
         }
         return root;
     }
@@ -239,12 +236,12 @@ public class PString<R> extends PBaseComparable<R, String> {
         if (model != root) {
             return P(model).get();
         }
-        return value;
+        return value();
     }
 
     @Override
     public R serialize(JsonGenerator jgen) throws IOException {
-        jgen.writeStringField(getName(), value);
+        jgen.writeStringField(getName(), value());
         return root;
     }
 
@@ -259,12 +256,17 @@ public class PString<R> extends PBaseComparable<R, String> {
     }
 
     @Override
-    public R deserialize(HashMap<String, Value> map) {
-        Value v = map.get(getFullName());
-        if (v != null) {
-            value = v.getString();
-        }
+    public R deserialize(Value v) {
+        setObjectValue(v.getString());
         return root;
     }
 
+    private String value() {
+        return (String) getObjectValue();
+    }
+
+    @Override
+    protected Value toValue() {
+        return ValueString.get(value());
+    }
 }
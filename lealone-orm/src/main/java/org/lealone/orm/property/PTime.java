@@ -19,7 +19,6 @@ package org.lealone.orm.property;
 
 import java.io.IOException;
 import java.sql.Time;
-import java.util.HashMap;
 
 import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueTime;
@@ -36,8 +35,6 @@ import com.fasterxml.jackson.databind.node.NumericNode;
  */
 public class PTime<R> extends PBaseNumber<R, Time> {
 
-    private Time value;
-
     /**
      * Construct with a property name and root instance.
      *
@@ -57,9 +54,9 @@ public class PTime<R> extends PBaseNumber<R, Time> {
         if (model != root) {
             return P(model).set(value);
         }
-        if (!areEqual(this.value, value)) {
-            this.value = value;
-            expr().set(name, ValueTime.get(value));
+        if (!areEqual(value(), value)) {
+            setObjectValue(value);
+            markDirty();
         }
         return root;
     }
@@ -74,12 +71,12 @@ public class PTime<R> extends PBaseNumber<R, Time> {
         if (model != root) {
             return P(model).get();
         }
-        return value;
+        return value();
     }
 
     @Override
     public R serialize(JsonGenerator jgen) throws IOException {
-        jgen.writeNumberField(getName(), value.getTime());
+        jgen.writeNumberField(getName(), value().getTime());
         return root;
     }
 
@@ -95,11 +92,17 @@ public class PTime<R> extends PBaseNumber<R, Time> {
     }
 
     @Override
-    public R deserialize(HashMap<String, Value> map) {
-        Value v = map.get(getFullName());
-        if (v != null) {
-            value = v.getTime();
-        }
+    public R deserialize(Value v) {
+        setObjectValue(v.getTime());
         return root;
     }
+
+    private Time value() {
+        return (Time) getObjectValue();
+    }
+
+    @Override
+    protected Value toValue() {
+        return ValueTime.get(value());
+    }
 }
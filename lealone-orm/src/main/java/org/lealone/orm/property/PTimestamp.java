@@ -19,7 +19,6 @@ package org.lealone.orm.property;
 
 import java.io.IOException;
 import java.sql.Timestamp;
-import java.util.HashMap;
 
 import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueTimestamp;
@@ -36,8 +35,6 @@ import com.fasterxml.jackson.databind.node.NumericNode;
  */
 public class PTimestamp<R> extends PBaseDate<R, Timestamp> {
 
-    private Timestamp value;
-
     /**
      * Construct with a property name and root instance.
      *
@@ -57,9 +54,9 @@ public class PTimestamp<R> extends PBaseDate<R, Timestamp> {
         if (model != root) {
             return P(model).set(value);
         }
-        if (!areEqual(this.value, value)) {
-            this.value = value;
-            expr().set(name, ValueTimestamp.get(value));
+        if (!areEqual(value(), value)) {
+            setObjectValue(value);
+            markDirty();
         }
         return root;
     }
@@ -74,12 +71,12 @@ public class PTimestamp<R> extends PBaseDate<R, Timestamp> {
         if (model != root) {
             return P(model).get();
         }
-        return value;
+        return value();
     }
 
     @Override
     public R serialize(JsonGenerator jgen) throws IOException {
-        jgen.writeNumberField(getName(), value.getTime());
+        jgen.writeNumberField(getName(), value().getTime());
         return root;
     }
 
@@ -95,11 +92,17 @@ public class PTimestamp<R> extends PBaseDate<R, Timestamp> {
     }
 
     @Override
-    public R deserialize(HashMap<String, Value> map) {
-        Value v = map.get(getFullName());
-        if (v != null) {
-            value = v.getTimestamp();
-        }
+    public R deserialize(Value v) {
+        setObjectValue(v.getTimestamp());
         return root;
     }
+
+    private Timestamp value() {
+        return (Timestamp) getObjectValue();
+    }
+
+    @Override
+    protected Value toValue() {
+        return ValueTimestamp.get(value());
+    }
 }
@@ -18,7 +18,6 @@
 package org.lealone.orm.property;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.UUID;
 
 import org.lealone.db.value.Value;
@@ -35,8 +34,6 @@ import com.fasterxml.jackson.databind.JsonNode;
  */
 public class PUuid<R> extends PBaseValueEqual<R, UUID> {
 
-    private UUID value;
-
     /**
      * Construct with a property name and root instance.
      *
@@ -56,9 +53,9 @@ public class PUuid<R> extends PBaseValueEqual<R, UUID> {
         if (model != root) {
             return P(model).set(value);
         }
-        if (!areEqual(this.value, value)) {
-            this.value = value;
-            expr().set(name, ValueUuid.get(value.getMostSignificantBits(), value.getLeastSignificantBits()));
+        if (!areEqual(value(), value)) {
+            setObjectValue(value);
+            markDirty();
         }
         return root;
     }
@@ -73,12 +70,12 @@ public class PUuid<R> extends PBaseValueEqual<R, UUID> {
         if (model != root) {
             return P(model).get();
         }
-        return value;
+        return value();
     }
 
     @Override
     public R serialize(JsonGenerator jgen) throws IOException {
-        jgen.writeStringField(getName(), value.toString());
+        jgen.writeStringField(getName(), value().toString());
         return root;
     }
 
@@ -94,11 +91,18 @@ public class PUuid<R> extends PBaseValueEqual<R, UUID> {
     }
 
     @Override
-    public R deserialize(HashMap<String, Value> map) {
-        Value v = map.get(getFullName());
-        if (v != null) {
-            value = (UUID) ValueUuid.get(v.getBytesNoCopy()).getObject();
-        }
+    public R deserialize(Value v) {
+        setObjectValue((UUID) ValueUuid.get(v.getBytesNoCopy()).getObject());
         return root;
     }
+
+    private UUID value() {
+        return (UUID) getObjectValue();
+    }
+
+    @Override
+    protected Value toValue() {
+        UUID v = value();
+        return ValueUuid.get(v.getMostSignificantBits(), v.getLeastSignificantBits());
+    }
 }
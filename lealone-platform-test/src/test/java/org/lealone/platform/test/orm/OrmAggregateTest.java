@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.platform.test.orm;
+
+import java.util.List;
+
+import org.lealone.orm.AggregateProperty;
+import org.lealone.orm.Tuple;
+import org.lealone.platform.test.SqlScript;
+import org.lealone.platform.test.generated.model.Customer;
+import org.lealone.platform.test.generated.model.Order;
+import org.lealone.test.UnitTestBase;
+
+public class OrmAggregateTest extends UnitTestBase {
+
+    public static void main(String[] args) {
+        new OrmAggregateTest().runTest();
+    }
+
+    @Override
+    public void test() {
+        SqlScript.createCustomerTable(this);
+        SqlScript.createCustomerAddressTable(this);
+        SqlScript.createProductTable(this);
+        SqlScript.createOrderTable(this);
+        SqlScript.createOrderItemTable(this);
+
+        Customer c1 = new Customer().id.set(9001).name.set("c1");
+        c1.addOrder(new Order().orderId.set(9101).orderDate.set("2018-01-01").total.set(10.0),
+                new Order().orderId.set(9102).orderDate.set("2018-01-02").total.set(20.0),
+                new Order().orderId.set(9103).orderDate.set("2018-01-02").total.set(30.0));
+        c1.insert();
+        Customer c2 = new Customer().id.set(9002).name.set("c2");
+        c2.addOrder(new Order().orderId.set(9104).orderDate.set("2018-01-05").total.set(5.0));
+        c2.insert();
+
+        aggregates();
+        groupByAggregates();
+    }
+
+    void aggregates() {
+        Order o = Order.dao;
+        List<Tuple> list = o.select(o.total.sum(), o.total.max(), o.orderId.count(), o.orderDate.countDistinct(),
+                o.orderDate.min()).where().orderId.ge(9101).findTuples();
+        assertEquals(1, list.size());
+        Tuple t = list.get(0);
+        assertEquals(65.0, t.getDouble(o.total.sum()), 0.001);
+        assertEquals(30.0, t.getDouble(1), 0.001);
+        assertEquals(4, t.getLong(o.orderId.count()));
+        assertEquals(3, t.getLong(o.orderDate.countDistinct()));
+        assertEquals("2018-01-01", t.getString(o.orderDate.min()));
+    }
+
+    void groupByAggregates() {
+        Order o = Order.dao;
+        AggregateProperty<Order> total = o.total.sum();
+        List<Tuple> list = o.select(o.customerId, total, o.total.avg()).where().orderId.ge(9101)
+                .groupBy(o.customerId).orderBy().customerId.asc().findTuples();
+        assertEquals(2, list.size());
+        assertEquals(9001, list.get(0).getLong(o.customerId));
+        assertEquals(60.0, list.get(0).getDouble(total), 0.001);
+        assertEquals(20.0, list.get(0).getDouble(o.total.avg()), 0.001);
+        assertEquals(9002, list.get(1).getLong(o.customerId));
+        assertEquals(5.0, list.get(1).getDouble(total), 0.001);
+    }
+}
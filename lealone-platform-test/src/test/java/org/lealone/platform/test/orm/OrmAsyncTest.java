@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.platform.test.orm;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.lealone.platform.test.SqlScript;
+import org.lealone.platform.test.generated.model.User;
+import org.lealone.test.UnitTestBase;
+
+public class OrmAsyncTest extends UnitTestBase {
+
+    public static void main(String[] args) {
+        new OrmAsyncTest().runTest();
+    }
+
+    @Override
+    public void test() {
+        SqlScript.createUserTable(this);
+
+        crud();
+        concurrentQueries();
+    }
+
+    void crud() {
+        long rowId = new User().id.set(4001).name.set("async1").insertAsync().join();
+        assertTrue(rowId > 0);
+
+        User u = User.dao.where().id.eq(4001).findOneAsync().join();
+        assertEquals("async1", u.name.get());
+
+        int count = User.dao.notes.set("n1").where().id.eq(4001).updateAsync().join();
+        assertEquals(1, count);
+        assertEquals(1, User.dao.where().notes.eq("n1").findCountAsync().join().intValue());
+
+        count = User.dao.where().id.eq(4001).deleteAsync().join();
+        assertEquals(1, count);
+        assertNull(User.dao.where().id.eq(4001).findOneAsync().join());
+    }
+
+    // 同一个线程可以同时发起多个异步查询
+    void concurrentQueries() {
+        for (int i = 1; i <= 5; i++) {
+            new User().id.set(4100 + i).name.set("a" + i).insert();
+        }
+        @SuppressWarnings("unchecked")
+        CompletableFuture<List<User>>[] futures = new CompletableFuture[5];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = User.dao.where().id.ge(4101L + i).findListAsync();
+        }
+        CompletableFuture.allOf(futures).join();
+        for (int i = 0; i < futures.length; i++) {
+            assertEquals(5 - i, futures[i].join().size());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.platform.test.orm;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import org.lealone.orm.BatchLoader;
+import org.lealone.platform.test.SqlScript;
+import org.lealone.platform.test.generated.model.Customer;
+import org.lealone.test.UnitTestBase;
+
+public class OrmBatchLoaderTest extends UnitTestBase {
+
+    public static void main(String[] args) {
+        new OrmBatchLoaderTest().runTest();
+    }
+
+    @Override
+    public void test() {
+        SqlScript.createCustomerTable(this);
+
+        for (int i = 1; i <= 10; i++) {
+            new Customer().id.set(3000 + i).name.set("c" + i).insert();
+        }
+        // 窗口足够长，有查找在等待或正在查询时，凑满8个不同的key才查询
+        BatchLoader<Customer> loader = BatchLoader.enable(Customer.dao, 1000 * 1000, 8);
+        try {
+            idleLookup(loader);
+            concurrentLookups(loader);
+            asyncLookups(loader);
+            notPointLookups(loader);
+        } finally {
+            BatchLoader.disable(Customer.class);
+        }
+    }
+
+    // 没有其他查找时不用等待时间窗口
+    void idleLookup(BatchLoader<Customer> loader) {
+        long batches = loader.getBatchCount();
+        long start = System.currentTimeMillis();
+        assertEquals("c1", Customer.dao.where().id.eq(3001L).findOne().name.get());
+        assertTrue(System.currentTimeMillis() - start < 500);
+        assertEquals(batches + 1, loader.getBatchCount());
+    }
+
+    void concurrentLookups(BatchLoader<Customer> loader) {
+        long requests = loader.getRequestCount();
+        long batches = loader.getBatchCount();
+        // 第一个查找直接查询，它还没结束时到来的7个查找再合并成一个IN查询
+        Customer[] customers = new Customer[8];
+        CountDownLatch startLatch = new CountDownLatch(1);
+        CountDownLatch latch = new CountDownLatch(customers.length);
+        for (int i = 0; i < customers.length; i++) {
+            int index = i;
+            new Thread(() -> {
+                try {
+                    startLatch.await();
+                    customers[index] = Customer.dao.where().id.eq(3001L + index).findOne();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    latch.countDown();
+                }
+            }).start();
+        }
+        startLatch.countDown();
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        assertEquals(requests + 8, loader.getRequestCount());
+        assertTrue(loader.getBatchCount() - batches < 8);
+        for (int i = 0; i < customers.length; i++) {
+            assertEquals("c" + (i + 1), customers[i].name.get());
+        }
+    }
+
+    void asyncLookups(BatchLoader<Customer> loader) {
+        // 同一批中相同的key只查一次，每个调用者拿到各自的副本，不存在的key得到null
+        CompletableFuture<Customer> f0 = Customer.dao.where().id.eq(3008L).findOneAsync();
+        CompletableFuture<Customer> f1 = Customer.dao.where().id.eq(3009L).findOneAsync();
+        CompletableFuture<Customer> f2 = Customer.dao.where().id.eq(3009L).findOneAsync();
+        CompletableFuture<Customer> f3 = Customer.dao.where().id.eq(3010L).findOneAsync();
+        CompletableFuture<Customer> f4 = Customer.dao.where().id.eq(9999L).findOneAsync();
+        CompletableFuture.allOf(f0, f1, f2, f3, f4).join();
+        assertEquals("c8", f0.join().name.get());
+        assertEquals("c9", f1.join().name.get());
+        assertEquals("c9", f2.join().name.get());
+        assertTrue(f1.join() != f2.join());
+        assertEquals("c10", f3.join().name.get());
+        assertNull(f4.join());
+    }
+
+    // 不是主键上的等值查询，或者有offset、排序时不合并
+    void notPointLookups(BatchLoader<Customer> loader) {
+        long requests = loader.getRequestCount();
+        assertEquals("c1", Customer.dao.where().name.eq("c1").findOne().name.get());
+        assertNull(Customer.dao.where().id.eq(3001L).offset(1).findOne());
+        assertEquals("c1", Customer.dao.where().id.eq(3001L).orderBy().name.asc().findOne().name.get());
+        assertEquals(requests, loader.getRequestCount());
+    }
+}
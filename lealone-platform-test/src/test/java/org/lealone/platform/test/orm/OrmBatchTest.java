@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.platform.test.orm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.lealone.platform.test.SqlScript;
+import org.lealone.platform.test.generated.model.User;
+import org.lealone.test.UnitTestBase;
+
+public class OrmBatchTest extends UnitTestBase {
+
+    public static void main(String[] args) {
+        new OrmBatchTest().runTest();
+    }
+
+    @Override
+    public void test() {
+        SqlScript.createUserTable(this);
+
+        insertAll();
+        batch();
+    }
+
+    void insertAll() {
+        List<User> users = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            User u = new User().name.set("b" + i);
+            // 字段集合不同的记录会分到不同的组
+            if (i % 2 == 0)
+                u.phone.set(i);
+            users.add(u);
+        }
+        long[] rowIds = User.dao.insertAll(users);
+        assertEquals(10, rowIds.length);
+        for (int i = 0; i < rowIds.length; i++) {
+            User u = User.dao.where().name.eq("b" + (i + 1)).findOne();
+            assertNotNull(u);
+        }
+        assertEquals(10, User.dao.where().name.like("b%").findCount());
+    }
+
+    void batch() {
+        long[] rowIds = User.dao.batch().batchSize(2).add(new User().name.set("x1"), new User().name.set("x2"))
+                .add(new User().name.set("x3")).insert();
+        assertEquals(3, rowIds.length);
+        assertTrue(rowIds[0] != rowIds[1] && rowIds[1] != rowIds[2]);
+        assertEquals(3, User.dao.where().name.like("x%").findCount());
+    }
+}
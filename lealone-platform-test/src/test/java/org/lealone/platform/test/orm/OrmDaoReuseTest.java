@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.platform.test.orm;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.lealone.platform.test.SqlScript;
+import org.lealone.platform.test.generated.model.User;
+import org.lealone.test.UnitTestBase;
+
+public class OrmDaoReuseTest extends UnitTestBase {
+
+    public static void main(String[] args) {
+        new OrmDaoReuseTest().runTest();
+    }
+
+    @Override
+    public void test() {
+        SqlScript.createUserTable(this);
+
+        for (int i = 1; i <= 3; i++) {
+            new User().id.set(5000 + i).name.set("r" + i).phone.set(i).insert();
+        }
+        reuseAfterExecution();
+        asyncRelease();
+        reclaimRootQueries();
+    }
+
+    // 执行过的子dao仍然被调用者持有，不能被其他查询复用
+    void reuseAfterExecution() {
+        User q = User.dao.where().name.eq("r1");
+        assertEquals(1, q.findList().size());
+
+        User q2 = User.dao.where().name.eq("r2");
+        assertTrue(q != q2);
+        assertEquals(1, q.findList().size());
+        assertEquals(2, q2.findOne().phone.get());
+
+        // 持有者再次使用时看到的是一个空的查询
+        List<User> list = q.where().name.eq("r3").findList();
+        assertEquals(1, list.size());
+        assertEquals("r3", list.get(0).name.get());
+        assertEquals(3, q.findCount());
+    }
+
+    // 异步查询的回调在其他线程中执行，结束后也不能把子dao交给其他线程
+    void asyncRelease() {
+        User q = User.dao.where().name.eq("r1");
+        assertEquals(1, q.findListAsync().join().size());
+
+        AtomicReference<User> ref = new AtomicReference<>();
+        Thread t = new Thread(() -> {
+            User q2 = User.dao.where().name.eq("r2");
+            ref.set(q2);
+            assertEquals(2, q2.findOne().phone.get());
+        });
+        t.start();
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            fail();
+        }
+        assertTrue(q != ref.get());
+        assertEquals(1, q.where().name.eq("r1").findListAsync().join().size());
+        assertEquals(3, q.findCountAsync().join().intValue());
+    }
+
+    // 根dao上的同步查询回收子dao，where()返回过的子dao不会再交给其他查询
+    void reclaimRootQueries() {
+        Set<User> held = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(3, User.dao.findCount());
+            assertEquals(3, User.dao.findList().size());
+            User q = User.dao.where();
+            assertTrue(held.add(q));
+            q.name.eq("r1");
+            assertEquals(3, User.dao.findCount());
+            assertEquals(1, q.findCount());
+        }
+        for (User q : held) {
+            assertEquals(2, q.where().name.eq("r2").findOne().phone.get());
+        }
+    }
+}
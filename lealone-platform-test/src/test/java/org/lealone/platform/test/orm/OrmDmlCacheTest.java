@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.platform.test.orm;
+
+import org.lealone.orm.DmlCache;
+import org.lealone.platform.test.SqlScript;
+import org.lealone.platform.test.generated.model.User;
+import org.lealone.test.UnitTestBase;
+
+public class OrmDmlCacheTest extends UnitTestBase {
+
+    public static void main(String[] args) {
+        new OrmDmlCacheTest().runTest();
+    }
+
+    @Override
+    public void test() {
+        SqlScript.createUserTable(this);
+
+        DmlCache cache = User.dao.getDmlCache();
+        long hits = cache.getHitCount();
+
+        // 字段组合相同的insert只预编译一次
+        for (int i = 1; i <= 10; i++) {
+            new User().name.set("d" + i).phone.set(i).insert();
+        }
+        assertEquals(hits + 9, cache.getHitCount());
+        assertEquals(10, User.dao.findCount());
+
+        // 不同的值和不同的条件值复用同一个Update
+        hits = cache.getHitCount();
+        User.dao.where().name.eq("d1").phone.set(100).update();
+        User.dao.where().name.eq("d2").phone.set(200).update();
+        assertEquals(hits + 1, cache.getHitCount());
+        assertEquals(100, User.dao.where().name.eq("d1").findOne().phone.get());
+        assertEquals(200, User.dao.where().name.eq("d2").findOne().phone.get());
+
+        // 按rowid更新模型实例
+        User u4 = User.dao.where().name.eq("d4").findOne();
+        User u5 = User.dao.where().name.eq("d5").findOne();
+        hits = cache.getHitCount();
+        u4.phone.set(44).update();
+        u5.phone.set(55).update();
+        assertEquals(hits + 1, cache.getHitCount());
+        assertEquals(55, User.dao.where().name.eq("d5").findOne().phone.get());
+
+        // 不同的delta也能复用
+        hits = cache.getHitCount();
+        User.dao.where().name.eq("d3").phone.add(1).update();
+        User.dao.where().name.eq("d3").phone.add(2).update();
+        assertEquals(hits + 1, cache.getHitCount());
+        assertEquals(6, User.dao.where().name.eq("d3").findOne().phone.get());
+
+        // 执行DDL后缓存的语句需要重新编译
+        long invalidations = cache.getInvalidationCount();
+        execute("create index if not exists idx_user_phone on user(phone)");
+        User.dao.where().name.eq("d1").phone.set(300).update();
+        assertEquals(invalidations + 1, cache.getInvalidationCount());
+        assertEquals(300, User.dao.where().name.eq("d1").findOne().phone.get());
+
+        hits = cache.getHitCount();
+        User.dao.where().name.eq("d9").delete();
+        User.dao.where().name.eq("d10").delete();
+        assertEquals(hits + 1, cache.getHitCount());
+        assertEquals(8, User.dao.findCount());
+
+        // 事务中的写操作不使用缓存
+        hits = cache.getHitCount();
+        long misses = cache.getMissCount();
+        long tid = User.dao.beginTransaction();
+        new User().name.set("t1").phone.set(1).insert(tid);
+        User.dao.commitTransaction(tid);
+        assertEquals(hits, cache.getHitCount());
+        assertEquals(misses, cache.getMissCount());
+        assertTrue(cache.size() > 0);
+    }
+}
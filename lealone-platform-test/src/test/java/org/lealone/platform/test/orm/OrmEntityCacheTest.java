@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.platform.test.orm;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lealone.orm.EntityCache;
+import org.lealone.platform.test.SqlScript;
+import org.lealone.platform.test.generated.model.Customer;
+import org.lealone.test.UnitTestBase;
+
+public class OrmEntityCacheTest extends UnitTestBase {
+
+    public static void main(String[] args) {
+        new OrmEntityCacheTest().runTest();
+    }
+
+    @Override
+    public void test() {
+        SqlScript.createCustomerTable(this);
+
+        EntityCache cache = EntityCache.enable(Customer.class, 100);
+        try {
+            findByPrimaryKey(cache);
+            invalidate(cache);
+            concurrentReads();
+            eviction();
+        } finally {
+            EntityCache.disable(Customer.class);
+        }
+    }
+
+    void findByPrimaryKey(EntityCache cache) {
+        new Customer().id.set(2001).name.set("c1").insert();
+
+        Customer c = Customer.dao.where().id.eq(2001).findOne();
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.size());
+
+        // 返回的是副本，修改它不会影响缓存
+        c.name.set("changed");
+        c = Customer.dao.where().id.eq(2001L).findOne();
+        assertEquals(1, cache.getHitCount());
+        assertEquals("c1", c.name.get());
+
+        // 不是主键上的等值查询不使用缓存
+        Customer.dao.where().name.eq("c1").findOne();
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    void invalidate(EntityCache cache) {
+        Customer c = Customer.dao.where().id.eq(2001).findOne();
+        c.name.set("c2").update();
+        assertEquals(0, cache.size());
+        c = Customer.dao.where().id.eq(2001).findOne();
+        assertEquals("c2", c.name.get());
+
+        Customer.dao.where().id.eq(2001).delete();
+        assertNull(Customer.dao.where().id.eq(2001).findOne());
+    }
+
+    // 多个线程同时读缓存，命中和未命中的次数都不能丢
+    void concurrentReads() {
+        EntityCache cache = EntityCache.enable(Customer.class, 100);
+        for (int i = 1; i <= 10; i++) {
+            new Customer().id.set(2100 + i).name.set("r" + i).insert();
+        }
+        int threadCount = 8;
+        int loops = 100;
+        Thread[] threads = new Thread[threadCount];
+        AtomicInteger errors = new AtomicInteger();
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < loops; i++) {
+                    int id = 2101 + i % 10;
+                    Customer c = Customer.dao.where().id.eq(id).findOne();
+                    if (c == null || !("r" + (id - 2100)).equals(c.name.get()))
+                        errors.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                fail();
+            }
+        }
+        assertEquals(0, errors.get());
+        assertEquals(threadCount * loops, cache.getHitCount() + cache.getMissCount());
+        assertEquals(10, cache.size());
+    }
+
+    void eviction() {
+        EntityCache cache = EntityCache.enable(Customer.class, 10);
+        for (int i = 1; i <= 20; i++) {
+            new Customer().id.set(3000 + i).name.set("e" + i).insert();
+        }
+        for (int i = 1; i <= 20; i++) {
+            Customer.dao.where().id.eq(3000 + i).findOne();
+        }
+        assertTrue(cache.size() <= 10);
+        assertTrue(cache.getEvictionCount() >= 10);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.platform.test.orm;
+
+import java.util.ArrayList;
+
+import org.lealone.platform.test.SqlScript;
+import org.lealone.platform.test.generated.model.Customer;
+import org.lealone.platform.test.generated.model.CustomerAddress;
+import org.lealone.platform.test.generated.model.Order;
+import org.lealone.test.UnitTestBase;
+
+public class OrmGraphInsertTest extends UnitTestBase {
+
+    public static void main(String[] args) {
+        new OrmGraphInsertTest().runTest();
+    }
+
+    @Override
+    public void test() {
+        SqlScript.createCustomerTable(this);
+        SqlScript.createCustomerAddressTable(this);
+        SqlScript.createProductTable(this);
+        SqlScript.createOrderTable(this);
+        SqlScript.createOrderItemTable(this);
+
+        insertGraph();
+        rollbackGraph();
+        insertAllGraphs();
+        insertGraphAsync();
+    }
+
+    void insertGraph() {
+        Customer c = new Customer().name.set("g1");
+        for (int i = 0; i < 50; i++)
+            c.addOrder(new Order().orderId.set(10001 + i).orderDate.set("2018-01-01"));
+        c.addCustomerAddress(new CustomerAddress().city.set("city1").street.set("street1"));
+        // 主键是在addXxx之后才设置的，插入时再用父模型的主键值填充外键
+        c.id.set(10001).insert();
+
+        assertEquals(50, Order.dao.where().customerId.eq(10001L).findCount());
+        assertEquals(1, CustomerAddress.dao.where().customerId.eq(10001L).findCount());
+        // 子模型插入后也有rowid，可以直接更新
+        c.getOrderList().get(49).orderDate.set("2018-02-01").update();
+        assertEquals("2018-02-01", Order.dao.where().orderId.eq(10050).findOne().orderDate.get().toString());
+    }
+
+    void rollbackGraph() {
+        Customer c = new Customer().id.set(10002).name.set("g2");
+        c.addOrder(new Order().orderId.set(10101).orderDate.set("2018-01-01"));
+        // 重复的主键
+        c.addOrder(new Order().orderId.set(10001).orderDate.set("2018-01-01"));
+        try {
+            c.insert();
+            fail();
+        } catch (Exception e) {
+            // 整个模型图在同一个事务中，父模型和已经插入的子模型都被回滚
+        }
+        assertNull(Customer.dao.where().id.eq(10002L).findOne());
+        assertEquals(0, Order.dao.where().orderId.eq(10101).findCount());
+    }
+
+    // 异步插入模型图时也是在同一个事务中插入的
+    void insertGraphAsync() {
+        Customer c = new Customer().id.set(10031).name.set("ga1");
+        // 字段集合不同的子模型分在不同的组里
+        c.addOrder(new Order().orderId.set(10301).orderDate.set("2018-01-01"),
+                new Order().orderId.set(10302).orderDate.set("2018-01-02"), new Order().orderId.set(10304));
+        assertTrue(c.insertAsync().join() > 0);
+        assertEquals(3, Order.dao.where().customerId.eq(10031L).findCount());
+        // 子模型也有rowid
+        c.getOrderList().get(2).orderDate.set("2018-02-01").update();
+        assertEquals("2018-02-01", Order.dao.where().orderId.eq(10304).findOne().orderDate.get().toString());
+
+        c = new Customer().id.set(10032).name.set("ga2");
+        c.addOrder(new Order().orderId.set(10303).orderDate.set("2018-01-01"));
+        // 重复的主键
+        c.addOrder(new Order().orderId.set(10301).orderDate.set("2018-01-01"));
+        try {
+            c.insertAsync().join();
+            fail();
+        } catch (Exception e) {
+        }
+        assertNull(Customer.dao.where().id.eq(10032L).findOne());
+        assertEquals(0, Order.dao.where().orderId.eq(10303).findCount());
+    }
+
+    void insertAllGraphs() {
+        ArrayList<Customer> customers = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Customer c = new Customer().id.set(10011 + i).name.set("g" + i);
+            c.addOrder(new Order().orderId.set(10201 + i * 2).orderDate.set("2018-01-01"),
+                    new Order().orderId.set(10202 + i * 2).orderDate.set("2018-01-02"));
+            customers.add(c);
+        }
+        Customer.dao.insertAll(customers);
+        assertEquals(10, Customer.dao.where().id.between(10011, 10020).findCount());
+        assertEquals(20, Order.dao.where().orderId.between(10201, 10220).findCount());
+        assertEquals(2, Order.dao.where().customerId.eq(10015L).findCount());
+    }
+}
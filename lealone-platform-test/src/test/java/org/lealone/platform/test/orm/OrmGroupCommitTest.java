@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.platform.test.orm;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.lealone.orm.GroupCommit;
+import org.lealone.platform.test.SqlScript;
+import org.lealone.platform.test.generated.model.User;
+import org.lealone.test.UnitTestBase;
+
+public class OrmGroupCommitTest extends UnitTestBase {
+
+    public static void main(String[] args) {
+        new OrmGroupCommitTest().runTest();
+    }
+
+    @Override
+    public void test() {
+        SqlScript.createUserTable(this);
+
+        GroupCommit gc = GroupCommit.getInstance();
+        GroupCommit.setEnabled(true);
+        try {
+            long commits = gc.getCommitCount();
+            long batches = gc.getBatchCount();
+            new User().name.set("g0").phone.set(0).insert();
+            assertEquals(commits + 1, gc.getCommitCount());
+            assertEquals(batches + 1, gc.getBatchCount());
+
+            concurrentWrites(gc);
+        } finally {
+            GroupCommit.setEnabled(false);
+        }
+        assertEquals(0, gc.getPendingCount());
+        assertEquals(0, gc.getTimeoutCount());
+    }
+
+    // 每个写线程在自己的线程中提交，同一个窗口内的提交组成一批，一起交给日志同步服务
+    void concurrentWrites(GroupCommit gc) {
+        int threads = 8;
+        int rows = 20;
+        long commits = gc.getCommitCount();
+        CountDownLatch latch = new CountDownLatch(threads);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < rows; i++) {
+                        new User().name.set("g" + index + "_" + i).phone.set(i).insert();
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                } finally {
+                    latch.countDown();
+                }
+            }).start();
+        }
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        assertNull(error.get());
+        assertEquals(commits + threads * rows, gc.getCommitCount());
+        assertEquals(1 + threads * rows, User.dao.findCount());
+        assertTrue(gc.getMaxPendingCount() >= 1);
+        assertTrue(gc.getBatchCount() > 0);
+        assertTrue(gc.getAverageBatchSize() >= 1);
+        assertTrue(gc.getMaxBatchSizeSeen() <= GroupCommit.getMaxBatchSize());
+
+        // 更新和删除同样等到提交持久化后才返回
+        commits = gc.getCommitCount();
+        User.dao.where().name.eq("g0").phone.set(100).update();
+        User.dao.where().name.eq("g0").delete();
+        assertEquals(commits + 2, gc.getCommitCount());
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.platform.test.orm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.lealone.orm.QueryCache;
+import org.lealone.platform.test.SqlScript;
+import org.lealone.platform.test.generated.model.User;
+import org.lealone.test.UnitTestBase;
+
+public class OrmInTest extends UnitTestBase {
+
+    public static void main(String[] args) {
+        new OrmInTest().runTest();
+    }
+
+    @Override
+    public void test() {
+        SqlScript.createUserTable(this);
+
+        ArrayList<User> users = new ArrayList<>();
+        ArrayList<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            users.add(new User().id.set(6001 + i).name.set("in" + i).phone.set(i));
+            ids.add(6001L + i);
+        }
+        User.dao.insertAll(users);
+
+        // 主键字段上的IN列表
+        Collections.shuffle(ids);
+        List<User> list = User.dao.where().id.in(ids).findList();
+        assertEquals(1000, list.size());
+        assertEquals(1000, User.dao.where().id.in(ids).findCount());
+        assertEquals(3, User.dao.where().id.in(6001L, 6002L, 6003L, 6003L).findCount());
+
+        // 没有索引的字段上的IN列表
+        assertEquals(2, User.dao.where().phone.in(1, 2, 100000).findCount());
+        assertEquals(998, User.dao.where().phone.notIn(1, 2).findCount());
+
+        // 空列表
+        assertEquals(0, User.dao.where().id.in(Collections.emptyList()).findCount());
+        assertEquals(1000, User.dao.where().id.notIn(Collections.emptyList()).findCount());
+
+        // 不同的值也能得到正确的结果
+        assertEquals(1, User.dao.where().id.in(6001L).findCount());
+        assertEquals(1, User.dao.where().id.in(6002L).findCount());
+
+        // 较短的IN列表绑定为参数，个数相同的列表复用同一个查询计划
+        QueryCache cache = QueryCache.getQueryCache(User.class);
+        User.dao.where().id.in(6001L, 6002L).findList();
+        long hits = cache.getHitCount();
+        assertEquals(2, User.dao.where().id.in(6003L, 6004L).findList().size());
+        assertEquals(2, User.dao.where().id.in(6005L, 6006L).findList().size());
+        assertEquals(hits + 2, cache.getHitCount());
+    }
+}
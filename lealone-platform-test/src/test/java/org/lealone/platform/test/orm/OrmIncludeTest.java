@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.platform.test.orm;
+
+import java.util.List;
+
+import org.lealone.orm.BatchLoader;
+import org.lealone.orm.EntityCache;
+import org.lealone.platform.test.SqlScript;
+import org.lealone.platform.test.generated.model.Customer;
+import org.lealone.platform.test.generated.model.CustomerAddress;
+import org.lealone.platform.test.generated.model.Order;
+import org.lealone.test.UnitTestBase;
+
+public class OrmIncludeTest extends UnitTestBase {
+
+    public static void main(String[] args) {
+        new OrmIncludeTest().runTest();
+    }
+
+    @Override
+    public void test() {
+        SqlScript.createCustomerTable(this);
+        SqlScript.createCustomerAddressTable(this);
+        SqlScript.createProductTable(this);
+        SqlScript.createOrderTable(this);
+        SqlScript.createOrderItemTable(this);
+
+        Customer c1 = new Customer().id.set(8001).name.set("c1");
+        c1.addOrder(new Order().orderId.set(8101).orderDate.set("2018-01-01"),
+                new Order().orderId.set(8102).orderDate.set("2018-01-02"));
+        c1.addCustomerAddress(new CustomerAddress().city.set("city1").street.set("street1"));
+        c1.insert();
+        Customer c2 = new Customer().id.set(8002).name.set("c2");
+        c2.addOrder(new Order().orderId.set(8103).orderDate.set("2018-01-03"));
+        c2.insert();
+        new Customer().id.set(8003).name.set("c3").insert();
+
+        // 每种关联模型只用一条IN查询
+        List<Customer> list = Customer.dao.where().id.ge(8001L).orderBy().id.asc().include(Order.dao)
+                .include(CustomerAddress.dao).findList();
+        assertEquals(3, list.size());
+        assertEquals(2, list.get(0).getOrderList().size());
+        assertEquals(1, list.get(0).getCustomerAddressList().size());
+        assertTrue(list.get(0) == list.get(0).getOrderList().get(0).getCustomer());
+        assertEquals(1, list.get(1).getOrderList().size());
+        assertNull(list.get(1).getCustomerAddressList());
+        assertNull(list.get(2).getOrderList());
+
+        Customer c = Customer.dao.where().id.eq(8002).include(Order.dao).findOne();
+        assertEquals(8103, c.getOrderList().get(0).orderId.get());
+
+        // 没有include时不加载关联模型
+        c = Customer.dao.where().id.eq(8001).findOne();
+        assertNull(c.getOrderList());
+
+        includeAsync();
+    }
+
+    // 异步查询完成后再异步加载关联模型，实体缓存和BatchLoader返回的模型也一样
+    void includeAsync() {
+        List<Customer> list = Customer.dao.where().id.ge(8001L).orderBy().id.asc().include(Order.dao)
+                .include(CustomerAddress.dao).findListAsync().join();
+        assertEquals(3, list.size());
+        assertEquals(2, list.get(0).getOrderList().size());
+        assertEquals(1, list.get(0).getCustomerAddressList().size());
+        assertEquals(1, list.get(1).getOrderList().size());
+        assertNull(list.get(2).getOrderList());
+
+        Customer c = Customer.dao.where().id.eq(8002).include(Order.dao).findOneAsync().join();
+        assertEquals(8103, c.getOrderList().get(0).orderId.get());
+
+        EntityCache.enable(Customer.class, 100);
+        try {
+            Customer.dao.where().id.eq(8001).findOne();
+            c = Customer.dao.where().id.eq(8001).include(Order.dao).findOneAsync().join();
+            assertEquals(2, c.getOrderList().size());
+        } finally {
+            EntityCache.disable(Customer.class);
+        }
+
+        BatchLoader.enable(Customer.dao);
+        try {
+            c = Customer.dao.where().id.eq(8002).include(Order.dao).findOneAsync().join();
+            assertEquals(1, c.getOrderList().size());
+        } finally {
+            BatchLoader.disable(Customer.class);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.platform.test.orm;
+
+import org.lealone.platform.test.SqlScript;
+import org.lealone.platform.test.generated.model.User;
+import org.lealone.test.UnitTestBase;
+
+public class OrmIncrementTest extends UnitTestBase {
+
+    public static void main(String[] args) {
+        new OrmIncrementTest().runTest();
+    }
+
+    @Override
+    public void test() {
+        SqlScript.createUserTable(this);
+
+        new User().name.set("stock").phone.set(10).id.set(1).insert();
+
+        increment();
+        guardedDecrement();
+    }
+
+    void increment() {
+        assertEquals(1, User.dao.where().name.eq("stock").phone.add(5).update());
+        assertEquals(15, User.dao.where().name.eq("stock").findOne().phone.get());
+        assertEquals(1, User.dao.where().name.eq("stock").phone.subtract(3).id.add(1).update());
+        User u = User.dao.where().name.eq("stock").findOne();
+        assertEquals(12, u.phone.get());
+        assertEquals(2, u.id.get());
+
+        // 普通模型按rowid更新
+        u.phone.add(-2).update();
+        assertEquals(10, User.dao.where().name.eq("stock").findOne().phone.get());
+    }
+
+    // where条件保证不会扣成负数，条件不满足时update返回0
+    void guardedDecrement() {
+        int succeeded = 0;
+        for (int i = 0; i < 15; i++) {
+            if (User.dao.where().name.eq("stock").phone.ge(1).phone.add(-1).update() == 1)
+                succeeded++;
+        }
+        assertEquals(10, succeeded);
+        assertEquals(0, User.dao.where().name.eq("stock").findOne().phone.get());
+    }
+}
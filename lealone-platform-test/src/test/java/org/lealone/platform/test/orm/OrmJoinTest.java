@@ -57,6 +57,10 @@ public class OrmJoinTest extends UnitTestBase {
         List<Order> orderList = customer.getOrderList();
         assertEquals(2, orderList.size());
         assertTrue(customer == orderList.get(0).getCustomer());
+        // 没有参与关联查询的表不会生成空的关联模型
+        assertNull(customer.getCustomerAddressList());
+        // 同一个关联模型只创建一次
+        assertTrue(orderList.get(0) != orderList.get(1));
 
         List<Customer> customerList = c.select(c.name, c.phone, o.orderId, o.orderDate).join(o).on().id.eq(o.customerId)
                 .where().id.eq(100).findList();
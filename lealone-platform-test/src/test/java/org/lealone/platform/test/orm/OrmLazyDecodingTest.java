@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.platform.test.orm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.lealone.orm.ModelIterator;
+import org.lealone.platform.test.SqlScript;
+import org.lealone.platform.test.generated.model.User;
+import org.lealone.test.UnitTestBase;
+
+public class OrmLazyDecodingTest extends UnitTestBase {
+
+    public static void main(String[] args) {
+        new OrmLazyDecodingTest().runTest();
+    }
+
+    @Override
+    public void test() {
+        SqlScript.createUserTable(this);
+
+        StringBuilder notes = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+            notes.append("0123456789");
+        ArrayList<User> users = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            users.add(new User().id.set(7001 + i).name.set("lazy" + i).notes.set(notes.toString()).phone.set(i));
+        }
+        User.dao.insertAll(users);
+
+        lazyValues(notes.toString());
+        assignBeforeRead();
+        benchmark();
+    }
+
+    void lazyValues(String notes) {
+        List<User> list = User.dao.where().id.ge(7001L).lazy().findList();
+        assertEquals(1000, list.size());
+        User u = User.dao.where().id.eq(7001).lazy().findOne();
+        assertTrue(u.hasLazyValues());
+        assertEquals(7001, u.id.get());
+        assertTrue(u.hasLazyValues());
+        assertEquals("lazy0", u.name.get());
+        assertEquals(notes, u.notes.get());
+        assertEquals(0, u.phone.get());
+        // 所有字段都解码后不再引用结果中的行
+        assertFalse(u.hasLazyValues());
+
+        // 只查询部分字段时其他字段不需要解码
+        u = User.dao.select(User.dao.name).where().id.eq(7002).lazy().findOne();
+        assertEquals("lazy1", u.name.get());
+        assertFalse(u.hasLazyValues());
+        assertNull(u.notes.get());
+
+        // 迭代器也支持延迟解码
+        try (ModelIterator<User> it = User.dao.where().id.ge(7001L).lazy().findIterator()) {
+            assertTrue(it.next().id.get() >= 7001);
+        }
+    }
+
+    void assignBeforeRead() {
+        User u = User.dao.where().id.eq(7003).lazy().findOne();
+        // 没有读取过的字段被赋值后不会再被行中的旧值覆盖
+        u.phone.set(10000).update();
+        assertEquals(10000, u.phone.get());
+        assertEquals("lazy2", u.name.get());
+        assertEquals(10000, User.dao.where().id.eq(7003).findOne().phone.get());
+    }
+
+    void benchmark() {
+        for (int i = 0; i < 5; i++) {
+            long t1 = System.nanoTime();
+            long sum = 0;
+            for (User u : User.dao.where().id.ge(7001L).findList())
+                sum += u.phone.get();
+            long t2 = System.nanoTime();
+            for (User u : User.dao.where().id.ge(7001L).lazy().findList())
+                sum -= u.phone.get();
+            long t3 = System.nanoTime();
+            assertEquals(0, sum);
+            System.out.println("findList eager: " + (t2 - t1) / 1000 + " us, lazy: " + (t3 - t2) / 1000 + " us");
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.platform.test.orm;
+
+import java.util.List;
+
+import org.lealone.platform.test.SqlScript;
+import org.lealone.platform.test.generated.model.User;
+import org.lealone.test.UnitTestBase;
+
+public class OrmModelLayoutTest extends UnitTestBase {
+
+    public static void main(String[] args) {
+        new OrmModelLayoutTest().runTest();
+    }
+
+    @Override
+    public void test() {
+        SqlScript.createUserTable(this);
+
+        nullValues();
+        updateChangedFields();
+    }
+
+    void nullValues() {
+        new User().id.set(1001).name.set("layout1").insert();
+        User u = User.dao.where().id.eq(1001).findOne();
+        assertEquals("layout1", u.name.get());
+        assertNull(u.notes.get());
+        // 数据库中为null的基本类型字段返回默认值
+        assertEquals(0, u.phone.get());
+    }
+
+    void updateChangedFields() {
+        new User().id.set(1002).name.set("layout2").phone.set(123).insert();
+        User u = User.dao.where().id.eq(1002).findOne();
+        // 只有修改过的字段才会被更新
+        u.notes.set("n2").update();
+
+        List<User> list = User.dao.where().name.eq("layout2").findList();
+        assertEquals(1, list.size());
+        assertEquals(123, list.get(0).phone.get());
+        assertEquals("n2", list.get(0).notes.get());
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.platform.test.orm;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.lealone.orm.Page;
+import org.lealone.platform.test.SqlScript;
+import org.lealone.platform.test.generated.model.User;
+import org.lealone.test.UnitTestBase;
+
+public class OrmPageTest extends UnitTestBase {
+
+    public static void main(String[] args) {
+        new OrmPageTest().runTest();
+    }
+
+    @Override
+    public void test() {
+        SqlScript.createUserTable(this);
+
+        ArrayList<User> users = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            users.add(new User().id.set(7001 + i).name.set("page" + i).phone.set(i % 5));
+        }
+        User.dao.insertAll(users);
+
+        limitAndOffset();
+        keyset();
+    }
+
+    void limitAndOffset() {
+        List<User> list = User.dao.where().id.ge(7001L).orderBy().id.asc().limit(10).findList();
+        assertEquals(10, list.size());
+        assertEquals(7001L, list.get(0).id.get());
+
+        // 相同形状不同的值
+        list = User.dao.where().id.ge(7001L).orderBy().id.asc().limit(5).offset(20).findList();
+        assertEquals(5, list.size());
+        assertEquals(7021L, list.get(0).id.get());
+    }
+
+    void keyset() {
+        // phone有重复值，rowid保证每一行的位置是唯一的
+        HashSet<Long> ids = new HashSet<>();
+        Page<User> page = User.dao.where().id.ge(7001L).orderBy().phone.asc().findPage(7);
+        int pages = 1;
+        int lastPhone = -1;
+        while (true) {
+            for (User u : page.getList()) {
+                assertTrue(ids.add(u.id.get()));
+                assertTrue(u.phone.get() >= lastPhone);
+                lastPhone = u.phone.get();
+            }
+            if (!page.hasNext())
+                break;
+            page = User.dao.where().id.ge(7001L).orderBy().phone.asc().after(page.getContinuationToken())
+                    .findPage(7);
+            pages++;
+        }
+        assertEquals(50, ids.size());
+        assertEquals(8, pages);
+
+        // 从一个模型之后开始
+        List<User> list = User.dao.where().id.ge(7001L).orderBy().id.desc().limit(3).findList();
+        User last = list.get(2);
+        list = User.dao.where().id.ge(7001L).orderBy().id.desc().after(last).limit(3).findList();
+        assertEquals(7047L, list.get(0).id.get());
+
+        list = User.dao.where().id.ge(7001L).orderBy().id.asc().seek(7010L).limit(2).findList();
+        assertEquals(7011L, list.get(0).id.get());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.platform.test.orm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.lealone.orm.ColumnarResult;
+import org.lealone.platform.test.SqlScript;
+import org.lealone.platform.test.generated.model.User;
+import org.lealone.test.UnitTestBase;
+
+public class OrmProjectionTest extends UnitTestBase {
+
+    public static void main(String[] args) {
+        new OrmProjectionTest().runTest();
+    }
+
+    public static class UserRecord {
+        final String name;
+        final long id;
+
+        public UserRecord(String name, long id) {
+            this.name = name;
+            this.id = id;
+        }
+    }
+
+    public static class UserBean {
+        String name;
+        int phone;
+    }
+
+    @Override
+    public void test() {
+        SqlScript.createUserTable(this);
+
+        ArrayList<User> users = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            User u = new User().id.set(8001 + i).name.set("p" + i).notes.set("n" + (i % 3));
+            // 有些记录的phone字段为null
+            if (i % 10 != 0)
+                u.phone.set(i);
+            users.add(u);
+        }
+        User.dao.insertAll(users);
+
+        findValues();
+        findColumns();
+        findRecords();
+    }
+
+    void findValues() {
+        long[] ids = User.dao.where().id.ge(8001L).orderBy().id.asc().findValues(User.dao.id);
+        assertEquals(100, ids.length);
+        assertEquals(8001, ids[0]);
+        assertEquals(8100, ids[99]);
+
+        int[] phones = User.dao.where().id.ge(8001L).orderBy().id.asc().findValues(User.dao.phone);
+        assertEquals(0, phones[0]);
+        assertEquals(1, phones[1]);
+        assertEquals(99 * 100 / 2 - (10 + 20 + 30 + 40 + 50 + 60 + 70 + 80 + 90), Arrays.stream(phones).sum());
+
+        assertEquals(0, User.dao.where().id.lt(0L).findValues(User.dao.id).length);
+    }
+
+    void findColumns() {
+        ColumnarResult r = User.dao.where().id.ge(8001L).orderBy().id.asc().findColumns(User.dao.id,
+                User.dao.notes, User.dao.phone);
+        assertEquals(100, r.size());
+        assertEquals(8001, r.getLongs(User.dao.id)[0]);
+        // 字符串按字典编码，重复的值只保存一份
+        assertEquals(3, r.getDictionary(User.dao.notes).length);
+        assertEquals("n1", r.getString(User.dao.notes, 1));
+        assertEquals(r.getCodes(User.dao.notes)[1], r.getCodes(User.dao.notes)[4]);
+        assertTrue(r.isNull(User.dao.phone, 0));
+        assertFalse(r.isNull(User.dao.phone, 1));
+        assertEquals(2L, r.getObject(User.dao.phone, 2));
+        assertNull(r.getObject(User.dao.phone, 10));
+    }
+
+    void findRecords() {
+        List<UserRecord> records = User.dao.select(User.dao.name, User.dao.id).where().id.ge(8001L).orderBy().id
+                .asc().findList(UserRecord.class);
+        assertEquals(100, records.size());
+        assertEquals("p0", records.get(0).name);
+        assertEquals(8001, records.get(0).id);
+
+        List<UserBean> beans = User.dao.select(User.dao.name, User.dao.phone).where().id.eq(8011)
+                .findList(UserBean.class);
+        assertEquals(1, beans.size());
+        assertEquals("p10", beans.get(0).name);
+        // 数据库中的null映射到基本类型字段时是默认值
+        assertEquals(0, beans.get(0).phone);
+    }
+}
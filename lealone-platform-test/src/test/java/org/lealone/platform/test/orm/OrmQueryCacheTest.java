@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.platform.test.orm;
+
+import org.lealone.orm.QueryCache;
+import org.lealone.orm.StatementPool;
+import org.lealone.platform.test.SqlScript;
+import org.lealone.platform.test.generated.model.User;
+import org.lealone.test.UnitTestBase;
+
+public class OrmQueryCacheTest extends UnitTestBase {
+
+    public static void main(String[] args) {
+        new OrmQueryCacheTest().runTest();
+    }
+
+    @Override
+    public void test() {
+        SqlScript.createUserTable(this);
+
+        new User().name.set("c1").phone.set(1).insert();
+        new User().name.set("c2").phone.set(2).insert();
+
+        QueryCache cache = User.dao.getQueryCache();
+        long hits = cache.getHitCount();
+
+        // 形状相同的查询只生成一次查询计划，之后只需要绑定新的参数值
+        User u = User.dao.where().name.eq("c1").findOne();
+        assertEquals(1, u.phone.get());
+        u = User.dao.where().name.eq("c2").findOne();
+        assertEquals(2, u.phone.get());
+        assertEquals(hits + 1, cache.getHitCount());
+
+        int count = User.dao.where().phone.ge(1).findCount();
+        assertEquals(2, count);
+        count = User.dao.where().phone.ge(2).findCount();
+        assertEquals(1, count);
+        assertEquals(hits + 2, cache.getHitCount());
+
+        // 形状不同，不能复用
+        long misses = cache.getMissCount();
+        User.dao.where().name.eq("c1").and().phone.eq(1).findList();
+        assertEquals(misses + 1, cache.getMissCount());
+
+        // 缓存的key是构建条件时生成的结构指纹，and和or、括号的位置不同时是不同的key
+        assertEquals(2, User.dao.where().name.eq("c1").or().phone.eq(2).findCount());
+        assertEquals(0, User.dao.where().name.eq("c1").and().phone.eq(2).findCount());
+        assertEquals(1, User.dao.where().lp().name.eq("c1").or().name.eq("c2").rp().and().phone.eq(2).findCount());
+        assertEquals(2, User.dao.where().name.eq("c1").or().lp().name.eq("c2").and().phone.eq(2).rp().findCount());
+        assertEquals(1, User.dao.where().name.like("c1%").findCount());
+        assertEquals(2, User.dao.where().name.like("c%").findCount());
+
+        // 执行DDL后缓存的查询需要重新编译，跟DmlCache一样
+        long invalidations = cache.getInvalidationCount();
+        execute("create index if not exists idx_user_name on user(name)");
+        u = User.dao.where().name.eq("c2").findOne();
+        assertEquals(2, u.phone.get());
+        assertEquals(invalidations + 1, cache.getInvalidationCount());
+
+        // 缓存的查询独占的session也要计数，清空缓存时关闭它们
+        int sessions = StatementPool.getSessionCount();
+        assertTrue(sessions >= cache.size());
+        int idle = cache.size();
+        cache.clear();
+        assertTrue(StatementPool.getSessionCount() <= sessions - idle);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.platform.test.orm;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.lealone.orm.LatencyHistogram;
+import org.lealone.orm.QueryMetrics;
+import org.lealone.platform.test.SqlScript;
+import org.lealone.platform.test.generated.model.User;
+import org.lealone.test.UnitTestBase;
+
+import io.vertx.core.json.JsonObject;
+
+public class OrmQueryMetricsTest extends UnitTestBase {
+
+    public static void main(String[] args) {
+        new OrmQueryMetricsTest().runTest();
+    }
+
+    @Override
+    public void test() {
+        SqlScript.createUserTable(this);
+
+        boolean enabled = QueryMetrics.isEnabled();
+        QueryMetrics.setEnabled(true);
+        QueryMetrics.reset();
+        try {
+            queryShapes();
+            histogram();
+            mbean();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            QueryMetrics.setEnabled(enabled);
+        }
+    }
+
+    void queryShapes() {
+        new User().id.set(5101).name.set("metrics1").insert();
+        new User().id.set(5102).name.set("metrics2").insert();
+        // 字面值不同但形状相同
+        User.dao.where().id.eq(5101).findOne();
+        User.dao.where().id.eq(5102).findOne();
+        User.dao.where().name.eq("metrics1").findList();
+        User.dao.where().name.eq("metrics2").findList();
+
+        List<QueryMetrics.ShapeSnapshot> shapes = QueryMetrics.getQueryShapes(User.class);
+        assertEquals(3, shapes.size());
+        for (QueryMetrics.ShapeSnapshot s : shapes) {
+            assertEquals(User.class.getName(), s.getModelClass());
+            assertEquals(2, s.getCallCount());
+            assertEquals(s.getCallCount(), s.getExecute().getCount());
+        }
+
+        JsonObject json = QueryMetrics.snapshot();
+        assertEquals(3, json.getJsonArray("queryShapes").size());
+
+        // 同一个缓存语句的key只生成一次形状，同步和异步查询共用它
+        User.dao.where().id.in(5101, 5102).findList();
+        User.dao.where().id.in(5102, 5101).findListAsync().join();
+        shapes = QueryMetrics.getQueryShapes(User.class);
+        assertEquals(4, shapes.size());
+    }
+
+    void histogram() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++)
+            h.record(i);
+        LatencyHistogram.Snapshot s = h.snapshot();
+        assertEquals(1000, s.getCount());
+        assertEquals(1000, s.getMax());
+        // 每个桶的相对误差不超过1/16
+        assertTrue(Math.abs(s.getP50() - 500) <= 500 / 16 + 1);
+        assertTrue(Math.abs(s.getP99() - 990) <= 990 / 16 + 1);
+    }
+
+    void mbean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(QueryMetrics.OBJECT_NAME);
+        assertTrue(server.isRegistered(name));
+        assertEquals(QueryMetrics.getActiveTransactionCount(), server.getAttribute(name, "ActiveTransactionCount"));
+    }
+}
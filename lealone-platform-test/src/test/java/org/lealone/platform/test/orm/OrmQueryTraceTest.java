@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.platform.test.orm;
+
+import org.lealone.orm.QueryTrace;
+import org.lealone.platform.test.SqlScript;
+import org.lealone.platform.test.generated.model.User;
+import org.lealone.test.UnitTestBase;
+
+public class OrmQueryTraceTest extends UnitTestBase {
+
+    public static void main(String[] args) {
+        new OrmQueryTraceTest().runTest();
+    }
+
+    @Override
+    public void test() {
+        SqlScript.createUserTable(this);
+
+        long threshold = QueryTrace.getSlowQueryThreshold();
+        double sampleRate = QueryTrace.getSampleRate();
+        try {
+            slowQuery();
+            sampling();
+        } finally {
+            QueryTrace.setSlowQueryThreshold(threshold);
+            QueryTrace.setSampleRate(sampleRate);
+        }
+    }
+
+    void slowQuery() {
+        // 阈值为0时所有语句都是慢查询
+        QueryTrace.setSlowQueryThreshold(0);
+        QueryTrace.setSampleRate(0);
+        long count = QueryTrace.getSlowQueryCount();
+        new User().id.set(5001).name.set("trace1").insert();
+        User.dao.where().id.eq(5001).findOne();
+        User.dao.where().name.eq("trace1").findCount();
+        assertEquals(count + 3, QueryTrace.getSlowQueryCount());
+
+        // 写操作的日志里也带上参数值
+        User.dao.phone.set(10).where().id.eq(5001).update();
+        User.dao.phone.set(11).where().id.eq(5001).updateAsync().join();
+        assertEquals(count + 5, QueryTrace.getSlowQueryCount());
+    }
+
+    void sampling() {
+        QueryTrace.setSlowQueryThreshold(-1);
+        QueryTrace.setSampleRate(1);
+        long count = QueryTrace.getSampledQueryCount();
+        User.dao.where().id.eq(5001).findList();
+        assertEquals(count + 1, QueryTrace.getSampledQueryCount());
+
+        // 都关闭时不做任何记录
+        QueryTrace.setSampleRate(0);
+        long slowCount = QueryTrace.getSlowQueryCount();
+        User.dao.where().id.eq(5001).findList();
+        assertEquals(count + 1, QueryTrace.getSampledQueryCount());
+        assertEquals(slowCount, QueryTrace.getSlowQueryCount());
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.platform.test.orm;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.lealone.orm.SessionPool;
+import org.lealone.platform.test.SqlScript;
+import org.lealone.platform.test.generated.model.User;
+import org.lealone.test.UnitTestBase;
+
+public class OrmSessionPoolTest extends UnitTestBase {
+
+    public static void main(String[] args) {
+        new OrmSessionPoolTest().runTest();
+    }
+
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+
+    @Override
+    public void test() {
+        SqlScript.createUserTable(this);
+
+        SessionPool pool = SessionPool.getSessionPool(System.getProperty("lealone.jdbc.url"));
+        int active = pool.getActiveSize();
+
+        concurrentTransactions();
+        assertEquals(active, pool.getActiveSize());
+
+        sharedModelTable();
+        assertEquals(active, pool.getActiveSize());
+
+        failedOperations();
+        assertEquals(active, pool.getActiveSize());
+        assertNull(error.get());
+    }
+
+    // 多个线程同时通过User.dao开始事务，每个事务都有自己的session
+    void concurrentTransactions() {
+        int threads = 8;
+        ConcurrentHashMap<Long, Boolean> tids = new ConcurrentHashMap<>();
+        runConcurrently(threads, index -> {
+            long tid = User.dao.beginTransaction();
+            tids.put(tid, true);
+            new User().name.set("t" + index).phone.set(index).insert(tid);
+            User.dao.commitTransaction(tid);
+        });
+        assertEquals(threads, tids.size());
+        assertEquals(threads, User.dao.findCount());
+    }
+
+    // 同一个结果中的模型共用一个ModelTable，在不同的线程中更新它们也不会共用session
+    void sharedModelTable() {
+        List<User> users = User.dao.findList();
+        runConcurrently(users.size(), index -> users.get(index).phone.set(100 + index).update());
+        assertEquals(users.size(), User.dao.where().phone.ge(100).findCount());
+    }
+
+    // 执行失败时session也要归还给session池
+    void failedOperations() {
+        for (int i = 0; i < 20; i++) {
+            try {
+                new User().name.set("t0").phone.set(i).insert();
+                fail();
+            } catch (Exception e) {
+                // 主键重复
+            }
+        }
+        assertEquals(1, User.dao.where().name.eq("t0").findCount());
+    }
+
+    private interface Task {
+        void run(int index);
+    }
+
+    private void runConcurrently(int threads, Task task) {
+        CountDownLatch latch = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            int index = i;
+            new Thread(() -> {
+                try {
+                    task.run(index);
+                } catch (Throwable t) {
+                    error.set(t);
+                } finally {
+                    latch.countDown();
+                }
+            }).start();
+        }
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        assertNull(error.get());
+    }
+}
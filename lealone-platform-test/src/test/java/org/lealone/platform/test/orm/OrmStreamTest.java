@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.platform.test.orm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.lealone.orm.ModelIterator;
+import org.lealone.platform.test.SqlScript;
+import org.lealone.platform.test.generated.model.Customer;
+import org.lealone.platform.test.generated.model.Order;
+import org.lealone.platform.test.generated.model.User;
+import org.lealone.test.UnitTestBase;
+
+public class OrmStreamTest extends UnitTestBase {
+
+    public static void main(String[] args) {
+        new OrmStreamTest().runTest();
+    }
+
+    @Override
+    public void test() {
+        SqlScript.createUserTable(this);
+        SqlScript.createCustomerTable(this);
+        SqlScript.createOrderTable(this);
+
+        stream();
+        joinStream();
+    }
+
+    void stream() {
+        for (int i = 1; i <= 10; i++) {
+            new User().name.set("s" + i).phone.set(i).insert();
+        }
+
+        List<User> list = new ArrayList<>();
+        User.dao.where().name.like("s%").fetchSize(3).forEach(u -> list.add(u));
+        assertEquals(10, list.size());
+
+        try (Stream<User> stream = User.dao.where().phone.gt(5).findStream()) {
+            List<Integer> phones = stream.map(u -> u.phone.get()).collect(Collectors.toList());
+            assertEquals(5, phones.size());
+        }
+
+        // 提前结束迭代时需要关闭
+        try (ModelIterator<User> it = User.dao.where().name.like("s%").findIterator()) {
+            assertTrue(it.hasNext());
+            assertNotNull(it.next().name.get());
+        }
+    }
+
+    void joinStream() {
+        Order o1 = new Order().orderId.set(3001).orderDate.set("2018-01-01");
+        Order o2 = new Order().orderId.set(3002).orderDate.set("2018-01-01");
+        new Customer().id.set(500).name.set("c500").addOrder(o1, o2).insert();
+        Order o3 = new Order().orderId.set(3003).orderDate.set("2018-01-02");
+        new Customer().id.set(600).name.set("c600").addOrder(o3).insert();
+
+        Customer c = Customer.dao;
+        Order o = Order.dao;
+        List<Customer> list = new ArrayList<>();
+        c.join(o).on().id.eq(o.customerId).where().id.ge(500).forEach(customer -> list.add(customer));
+        assertEquals(2, list.size());
+        assertEquals(3, list.get(0).getOrderList().size() + list.get(1).getOrderList().size());
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.platform.test.orm;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.lealone.orm.ModelIterator;
+import org.lealone.orm.TransactionContext;
+import org.lealone.platform.test.SqlScript;
+import org.lealone.platform.test.generated.model.User;
+import org.lealone.test.UnitTestBase;
+
+public class OrmTransactionContextTest extends UnitTestBase {
+
+    public static void main(String[] args) {
+        new OrmTransactionContextTest().runTest();
+    }
+
+    @Override
+    public void test() {
+        SqlScript.createUserTable(this);
+
+        propagation();
+        nested();
+        reaping();
+    }
+
+    void propagation() {
+        long tid = User.dao.beginTransaction();
+        TransactionContext context = TransactionContext.current();
+        assertNotNull(context);
+        assertEquals(tid, context.getTransactionId());
+
+        // 绑定到其他线程后，不需要传递事务id
+        CompletableFuture.runAsync(context.wrap(() -> {
+            new User().id.set(5201).name.set("ctx1").insert();
+        })).join();
+        // 没有绑定的线程使用自动提交模式
+        CompletableFuture.runAsync(() -> {
+            assertNull(TransactionContext.current());
+        }).join();
+        assertEquals(0, User.dao.where().id.eq(5201).findCount());
+
+        User.dao.commitTransaction();
+        assertNull(TransactionContext.current());
+        assertFalse(context.isActive());
+        assertEquals(1, User.dao.where().id.eq(5201).findCount());
+
+        // 事务结束后不能再使用它的id
+        try {
+            new User().id.set(5202).name.set("ctx2").insert(tid);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    void nested() {
+        long tid1 = User.dao.beginTransaction();
+        long tid2 = User.dao.beginTransaction();
+        assertEquals(tid2, TransactionContext.current().getTransactionId());
+        User.dao.rollbackTransaction();
+        assertEquals(tid1, TransactionContext.current().getTransactionId());
+        User.dao.rollbackTransaction();
+        assertNull(TransactionContext.current());
+    }
+
+    void reaping() {
+        long timeout = TransactionContext.getIdleTimeout();
+        TransactionContext.setIdleTimeout(200);
+        try {
+            long count = TransactionContext.getReapedCount();
+            User.dao.beginTransaction();
+            TransactionContext context = TransactionContext.current();
+            new User().id.set(5203).name.set("ctx3").insert();
+            // 没有关闭的迭代器一直在使用事务，回收线程会跳过它
+            ModelIterator<User> iterator = User.dao.findIterator();
+            Thread.sleep(1000);
+            assertTrue(context.isActive());
+            iterator.close();
+
+            awaitReaped(context);
+            assertTrue(context.isExpired());
+            assertEquals(count + 1, TransactionContext.getReapedCount());
+            // 回收线程已经回滚了事务并关闭了它的session
+            assertNull(TransactionContext.get(context.getTransactionId()));
+            assertNull(TransactionContext.current());
+            assertEquals(0, User.dao.where().id.eq(5203).findCount());
+            try {
+                new User().id.set(5204).name.set("ctx4").insert(context.getTransactionId());
+                fail();
+            } catch (IllegalStateException e) {
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            TransactionContext.setIdleTimeout(timeout);
+        }
+    }
+
+    private void awaitReaped(TransactionContext context) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (context.isActive() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertFalse(context.isActive());
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.platform.test.orm;
+
+import java.util.ArrayList;
+
+import org.lealone.platform.test.SqlScript;
+import org.lealone.platform.test.generated.model.User;
+import org.lealone.test.UnitTestBase;
+
+public class OrmUpsertTest extends UnitTestBase {
+
+    public static void main(String[] args) {
+        new OrmUpsertTest().runTest();
+    }
+
+    @Override
+    public void test() {
+        SqlScript.createUserTable(this);
+
+        upsert();
+        upsertAll();
+        upsertWithoutPrimaryKey();
+    }
+
+    void upsert() {
+        // 记录不存在时插入
+        assertEquals(1, new User().name.set("u1").phone.set(1).id.set(9001).upsert());
+        assertEquals(1, User.dao.where().name.eq("u1").findOne().phone.get());
+
+        // 记录存在时按主键更新
+        assertEquals(1, new User().name.set("u1").phone.set(2).upsert());
+        User u = User.dao.where().name.eq("u1").findOne();
+        assertEquals(2, u.phone.get());
+        assertEquals(9001, u.id.get());
+        assertEquals(1, User.dao.where().name.eq("u1").findCount());
+    }
+
+    void upsertAll() {
+        ArrayList<User> users = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            users.add(new User().name.set("ua" + i).phone.set(i));
+        assertEquals(10, User.dao.upsertAll(users));
+
+        // 一半是已经存在的记录，一半是新记录
+        users.clear();
+        for (int i = 5; i < 15; i++)
+            users.add(new User().name.set("ua" + i).phone.set(100 + i));
+        assertEquals(10, User.dao.upsertAll(users));
+        assertEquals(15, User.dao.where().name.startsWith("ua").findCount());
+        assertEquals(4, User.dao.where().name.eq("ua4").findOne().phone.get());
+        assertEquals(105, User.dao.where().name.eq("ua5").findOne().phone.get());
+        assertEquals(114, User.dao.where().name.eq("ua14").findOne().phone.get());
+    }
+
+    void upsertWithoutPrimaryKey() {
+        try {
+            new User().phone.set(1).upsert();
+            fail();
+        } catch (IllegalStateException e) {
+            // 主键字段没有值时无法判断记录是否存在
+        }
+    }
+}
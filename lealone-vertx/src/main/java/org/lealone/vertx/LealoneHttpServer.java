@@ -19,6 +19,7 @@ package org.lealone.vertx;
 
 import org.lealone.common.logging.Logger;
 import org.lealone.common.logging.LoggerFactory;
+import org.lealone.orm.QueryMetrics;
 
 import io.vertx.core.Vertx;
 import io.vertx.core.VertxOptions;
@@ -36,6 +37,8 @@ public class LealoneHttpServer {
 
     private static final Logger logger = LoggerFactory.getLogger(LealoneHttpServer.class);
 
+    public static final String ORM_METRICS_URL = "/_lealone_orm_metrics_";
+
     public static void start(int port, String webRoot) {
         start(port, webRoot, null);
     }
@@ -59,6 +62,13 @@ public class LealoneHttpServer {
             routingContext.request().response().end(result);
         });
 
+        // ORM的查询指标，只有启用了lealone.orm.metrics才有按查询形状统计的数据
+        router.get(ORM_METRICS_URL).handler(routingContext -> {
+            routingContext.request().response().headers().set("Content-Type", "application/json; charset=utf-8");
+            routingContext.request().response().headers().set("Access-Control-Allow-Origin", "*");
+            routingContext.request().response().end(QueryMetrics.snapshot().encode());
+        });
+
         router.route().handler(CorsHandler.create("*").allowedMethod(HttpMethod.GET).allowedMethod(HttpMethod.POST));
         setSockJSHandler(vertx, router, apiPath);
         // 放在最后